@@ -0,0 +1,226 @@
+package edu.umn.cs.recsys;
+
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+
+import java.util.List;
+
+/**
+ * Select the <i>n</i> highest-scoring IDs from a stream of (ID, score) pairs.  The selected
+ * pairs are kept in a min-heap over primitive arrays, so each offered pair costs at most
+ * O(log <i>n</i>) time.  The arrays grow on demand up to <i>n</i>, so a selector with a large
+ * bound only uses memory for the IDs actually offered.  Ties in score are broken in favor of
+ * the lower ID, so the selection does not depend on the order of the pairs.  A selector can be
+ * reused; the {@code finish} methods clear it.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TopNSelector {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int capacity;
+    private long[] ids;
+    private double[] scores;
+    private int size;
+
+    /**
+     * Create a new selector.
+     * @param n The number of IDs to select.
+     */
+    public TopNSelector(int n) {
+        capacity = n;
+        ids = new long[Math.min(n, INITIAL_CAPACITY)];
+        scores = new double[ids.length];
+        size = 0;
+    }
+
+    /**
+     * Get the number of IDs currently selected.
+     * @return The number of IDs selected (at most <i>n</i>).
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Query whether <i>n</i> IDs have been selected, so an ID must beat the
+     * {@linkplain #minScore() lowest selected score} to be kept.
+     * @return {@code true} if the selector is full.
+     */
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * Get the lowest score among the selected IDs.  Once the selector is full, an ID scoring
+     * below this is not kept; one scoring equal to it is kept only if its ID is lower.
+     * @return The lowest selected score, or negative infinity if no IDs are selected.
+     */
+    public double minScore() {
+        return size > 0 ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Discard all selected IDs.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Offer an ID to the selector.  It is kept if fewer than <i>n</i> IDs have been selected or
+     * if it ranks above the lowest-ranked selected ID, which it then replaces.
+     *
+     * @param id The ID.
+     * @param score The ID's score.
+     */
+    public void put(long id, double score) {
+        if (size < capacity) {
+            if (size == ids.length) {
+                grow();
+            }
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size);
+            size++;
+        } else if (capacity > 0 && worse(ids[0], scores[0], id, score)) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Offer every ID selected by another selector to this one.  Merging selectors that were
+     * offered disjoint sets of pairs selects the same IDs as offering all the pairs to one
+     * selector.
+     * @param other The selector whose IDs to offer; it is not modified.
+     */
+    public void putAll(TopNSelector other) {
+        for (int i = 0; i < other.size; i++) {
+            put(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Finish selecting, returning the selected IDs as a vector.
+     * @return A vector mapping each selected ID to its score.
+     */
+    public MutableSparseVector finishVector() {
+        long[] keys = new long[size];
+        System.arraycopy(ids, 0, keys, 0, size);
+        MutableSparseVector vector = MutableSparseVector.create(keys);
+        for (int i = 0; i < size; i++) {
+            vector.set(ids[i], scores[i]);
+        }
+        clear();
+        return vector;
+    }
+
+    /**
+     * Finish selecting, returning the selected IDs as a list.
+     * @return The selected IDs, sorted by decreasing score.
+     */
+    public List<ScoredId> finishList() {
+        int n = sortDescending();
+        ScoredIdListBuilder builder = ScoredIds.newListBuilder();
+        for (int i = 0; i < n; i++) {
+            builder.add(ids[i], scores[i]);
+        }
+        clear();
+        return builder.finish();
+    }
+
+    /**
+     * Finish selecting, copying the selected IDs into arrays.
+     * @param outIds The array to receive the selected IDs, sorted by decreasing score.
+     * @param outScores The array to receive the scores of the selected IDs.
+     * @param offset The position in the arrays at which to start writing.
+     * @return The number of IDs written.
+     */
+    public int finishInto(long[] outIds, float[] outScores, int offset) {
+        int n = sortDescending();
+        for (int i = 0; i < n; i++) {
+            outIds[offset + i] = ids[i];
+            outScores[offset + i] = (float) scores[i];
+        }
+        clear();
+        return n;
+    }
+
+    /**
+     * Pop the heap minimum into the end of the arrays until they are in decreasing order.
+     * @return The number of selected IDs.
+     */
+    private int sortDescending() {
+        int n = size;
+        while (size > 1) {
+            size--;
+            swap(0, size);
+            siftDown(0);
+        }
+        size = n;
+        return n;
+    }
+
+    private void grow() {
+        int length = (int) Math.min((long) ids.length * 2, capacity);
+        long[] newIds = new long[Math.max(length, 1)];
+        double[] newScores = new double[newIds.length];
+        System.arraycopy(ids, 0, newIds, 0, size);
+        System.arraycopy(scores, 0, newScores, 0, size);
+        ids = newIds;
+        scores = newScores;
+    }
+
+    /**
+     * Query whether the first pair ranks below the second: it scores lower, or it scores the
+     * same and has the higher ID.
+     */
+    private static boolean worse(long id1, double score1, long id2, double score2) {
+        return score1 < score2 || (score1 == score2 && id1 > id2);
+    }
+
+    private boolean worse(int i, int j) {
+        return worse(ids[i], scores[i], ids[j], scores[j]);
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (!worse(pos, parent)) {
+                break;
+            }
+            swap(parent, pos);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(child + 1, child)) {
+                child++;
+            }
+            if (!worse(child, pos)) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.uu;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the minimum number of items a user must have rated in common with the
+ * target user to be considered as a neighbor.  The default admits every neighbor.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MinCommonRatings {
+}
@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.uu;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the minimum similarity a user must have to the target user to be
+ * considered as a neighbor.  The default admits every neighbor.
+ */
+@Documented
+@Qualifier
+@Parameter(Double.class)
+@DefaultDouble(-1.0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MinNeighborSimilarity {
+}
@@ -1,24 +1,18 @@
 package edu.umn.cs.recsys.uu;
 
-import java.util.List;
-
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongSet;
-import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
+import edu.umn.cs.recsys.TopNSelector;
+import edu.umn.cs.recsys.dao.RatingIndexDAO;
 import org.grouplens.lenskit.basic.AbstractItemScorer;
 import org.grouplens.lenskit.data.dao.ItemEventDAO;
 import org.grouplens.lenskit.data.dao.UserEventDAO;
-import org.grouplens.lenskit.data.event.Rating;
-import org.grouplens.lenskit.data.history.History;
-import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
-import org.grouplens.lenskit.data.history.UserHistory;
-import org.grouplens.lenskit.data.pref.Preference;
+import org.grouplens.lenskit.knn.NeighborhoodSize;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
-import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,120 +27,137 @@ public class SimpleUserUserItemScorer extends AbstractItemScorer {
 
     private static final Logger logger = LoggerFactory.getLogger(SimpleUserUserItemScorer.class);
 
-    private static final CosineVectorSimilarity cvs = new CosineVectorSimilarity();
-
     private final UserEventDAO userDao;
     private final ItemEventDAO itemDao;
+    private final UserVectorModel model;
+    private final SimpleUserUserModel neighborModel;
+    private final int neighborhoodSize;
+    private final double minSimilarity;
+    private final int minCommonRatings;
 
+    /**
+     * Construct the user-user scorer.
+     * @param udao The user event DAO.
+     * @param idao The item event DAO.
+     * @param m The normalized user vectors.
+     * @param nbrs The precomputed user neighborhoods.
+     * @param nnbrs The number of neighbors to use for each prediction.
+     * @param minSim The minimum similarity of a neighbor to the user.
+     * @param minCommon The minimum number of items a neighbor must have rated in common with
+     *                  the user.
+     */
     @Inject
-    public SimpleUserUserItemScorer(UserEventDAO udao, ItemEventDAO idao) {
+    public SimpleUserUserItemScorer(UserEventDAO udao, ItemEventDAO idao, UserVectorModel m,
+                                    SimpleUserUserModel nbrs,
+                                    @NeighborhoodSize int nnbrs,
+                                    @MinNeighborSimilarity double minSim,
+                                    @MinCommonRatings int minCommon) {
         userDao = udao;
         itemDao = idao;
-    }
-
-    private static void meanCenterVector(MutableSparseVector v) {
-        double mean = v.mean();
-        v.add(-mean);
-    }
-
-    /**
-     * Compute similarity score between two users, given their ratings
-     * vector.
-     */
-    private static double similarity(SparseVector v1, SparseVector v2) {
-        MutableSparseVector mv1 = v1.mutableCopy();
-        MutableSparseVector mv2 = v2.mutableCopy();
-        meanCenterVector(mv1);
-        meanCenterVector(mv2);
-        return cvs.similarity(mv1, mv2);
+        model = m;
+        neighborModel = nbrs;
+        neighborhoodSize = nnbrs;
+        minSimilarity = minSim;
+        minCommonRatings = minCommon;
     }
 
     /**
-     * Get all ratings given to 'item' by 'users', i.e. one rating for each
-     * user in the set 'users'.
+     * Look up the similarity between the user and 'vser', computing it if
+     * it is not yet in the cache.
+     * @param cache The similarities computed so far for the user.
      */
-    private SparseVector getItemRatings(long item, LongSortedSet users) {
-        MutableSparseVector itemRatingsSubset = MutableSparseVector.create(users);
-        List<Rating> itemRatings = itemDao.getEventsForItem(item, Rating.class);
-        if (itemRatings == null) {
-            return itemRatingsSubset;
+    private double cachedSimilarity(Long2DoubleMap cache, SparseVector userVector, long vser) {
+        double similarity = cache.get(vser);
+        if (Double.isNaN(similarity)) {
+            similarity = UserVectorModel.similarity(userVector, model.getNormalizedVector(vser),
+                                                    minCommonRatings);
+            cache.put(vser, similarity);
         }
-        for (Rating r : itemRatings) {
-            Preference p = r.getPreference();
-            if (p == null) {
-                continue;
-            }
-            long user = p.getUserId();
-            if (! users.contains(user)) {
-                continue;
-            }
-            double rating = p.getValue();
-            itemRatingsSubset.set(user, rating);
-        }
-        return itemRatingsSubset;
-    }
-
-    /**
-     * Get the mean rating made by each user in the set 'users'.
-     */
-    private SparseVector getMeanRatings(LongSortedSet users) {
-        MutableSparseVector meanRatings = MutableSparseVector.create(users);
-        for (VectorEntry ve : meanRatings.fast(VectorEntry.State.UNSET)) {
-            long user = ve.getKey();
-            double mean = getUserRatingVector(user).mean();
-            meanRatings.set(ve, mean);
-        }
-        return meanRatings.freeze();
+        return similarity;
     }
 
     /**
      * Return the predicted rating of 'item' for 'user'.
+     * @param userVector The user's normalized rating vector.
+     * @param userMean The user's mean rating.
+     * @param userIndex The user's index in the neighbor model, or a negative
+     *                  value if the user is not in it.
+     * @param similarityCache The user's similarities to other users, shared
+     *                        by all the items scored in one request.
+     * @param selector The selector to find the neighborhood with.
      */
-    private double predictedRating(long user, long item) {
-        // All sparse vectors have the key domain equal to the neighborhood.
-        SparseVector similarities = neighborhood(user, item);
+    private double predictedRating(long user, SparseVector userVector, double userMean,
+                                   int userIndex,
+                                   Long2DoubleMap similarityCache, TopNSelector selector,
+                                   long item) {
+        SparseVector itemRatings = RatingIndexDAO.itemRatingVector(itemDao, item);
+        // The similarity vector's key domain is the neighborhood.
+        SparseVector similarities;
+        if (userIndex >= 0) {
+            similarities = modelNeighborhood(userIndex, itemRatings, selector);
+        } else {
+            similarities = neighborhood(user, userVector, similarityCache, itemRatings, selector);
+        }
         logger.info("User {}'s neighborhood size: {}", user, similarities.size());
-        SparseVector itemRatings = getItemRatings(item, similarities.keySet());
-        SparseVector meanRatings = getMeanRatings(similarities.keySet());
+        double numerator = 0.0;
         double denominator = 0.0;
         for (VectorEntry e : similarities.fast(VectorEntry.State.SET)) {
+            long vser = e.getKey();
             double similarity = e.getValue();
+            numerator += similarity * (itemRatings.get(vser) - model.getMean(vser));
             denominator += Math.abs(similarity);
         }
-        MutableSparseVector itemRatingsMutable = itemRatings.mutableCopy();
-        itemRatingsMutable.subtract(meanRatings);
-        double numerator = itemRatingsMutable.dot(similarities);
-        return (numerator / denominator) + getUserRatingVector(user).mean();
+        return (numerator / denominator) + userMean;
     }
 
     /**
      * Return the neighborhood of 'user' among those who have rated 'item'.
+     * @param itemRatings The ratings of 'item'.
+     * @param selector The selector to pick the top vsers with.
      */
-    private ImmutableSparseVector neighborhood(long user, long item) {
+    private ImmutableSparseVector neighborhood(long user, SparseVector userVector,
+                                               Long2DoubleMap similarityCache,
+                                               SparseVector itemRatings,
+                                               TopNSelector selector) {
         // Get vsers that rated 'item'
-        LongSet vsers = this.itemDao.getUsersForItem(item);
-        logger.info("# ratings for item {} = {} (might include user {})", item, vsers.size(), user);
-        vsers.remove(user);
-        MutableSparseVector similarities = MutableSparseVector.create(vsers);
-        // Compute similarities between user and vsers
-        SparseVector userVector = getUserRatingVector(user);
-        for (VectorEntry e : similarities.fast(VectorEntry.State.UNSET)) {
+        logger.info("# ratings for item = {} (might include user {})", itemRatings.size(), user);
+        // Compute similarities between user and vsers, keeping the most similar
+        for (VectorEntry e : itemRatings.fast(VectorEntry.State.SET)) {
             long vser = e.getKey();
-            SparseVector vserVector = getUserRatingVector(vser);
-            double similarity = similarity(userVector, vserVector);
-            similarities.set(e, similarity);
+            if (vser == user || !model.hasUser(vser)) {
+                continue;
+            }
+            double similarity = cachedSimilarity(similarityCache, userVector, vser);
+            if (similarity < minSimilarity) {
+                continue;
+            }
+            selector.put(vser, similarity);
         }
-        // Sorted vsers by similarity score
-        LongArrayList sortedvsers = similarities.keysByValue(true);
-        int topNsize = Math.min(30, sortedvsers.size());
-        long[] topNvsers = new long[topNsize];
-        // Create similarity vector for just the top 30 vsers
-        sortedvsers.getElements(0, topNvsers, 0, topNsize);
-        MutableSparseVector topNsimilarity = MutableSparseVector.create(topNvsers);
-        for (long vser : topNvsers) {
-            topNsimilarity.set(vser, similarities.get(vser));
+        return selector.finishVector().freeze();
+    }
+
+    /**
+     * Return the neighborhood of a user among those who have rated 'item',
+     * taken from the user's precomputed neighbors.
+     * @param userIndex The user's index in the neighbor model.
+     * @param itemRatings The ratings of 'item'.
+     * @param selector The selector to collect the neighborhood in.
+     */
+    private ImmutableSparseVector modelNeighborhood(int userIndex,
+                                                    SparseVector itemRatings,
+                                                    TopNSelector selector) {
+        int end = neighborModel.neighborEnd(userIndex);
+        // the neighbors are stored most similar first
+        for (int pos = neighborModel.neighborStart(userIndex); pos < end; pos++) {
+            if (selector.size() >= neighborhoodSize) {
+                break;
+            }
+            long vser = neighborModel.neighborId(pos);
+            if (itemRatings.containsKey(vser)) {
+                selector.put(vser, neighborModel.neighborScore(pos));
+            }
         }
-        return topNsimilarity.freeze();
+        return selector.finishVector().freeze();
     }
 
     @SuppressWarnings("unused")
@@ -162,12 +173,31 @@ public class SimpleUserUserItemScorer extends AbstractItemScorer {
     @Override
     public void score(long user, @Nonnull MutableSparseVector scores) {
         logger.info("Scoring for user {}", user);
-        // TODO Score items for this user using user-user collaborative filtering
+        SparseVector userVector;
+        double userMean;
+        if (model.hasUser(user)) {
+            userVector = model.getNormalizedVector(user);
+            userMean = model.getMean(user);
+        } else {
+            // the user is newer than the model, normalize their ratings now
+            MutableSparseVector vector = getUserRatingVector(user).mutableCopy();
+            userMean = UserVectorModelBuilder.normalize(vector);
+            userVector = vector;
+        }
+
+        // Users in the neighbor model only need their neighbor list intersected with
+        // each item's raters; other users' neighborhoods are computed on the fly, and
+        // each neighbor's similarity is computed once, for the first item they rated
+        int userIndex = neighborModel.userIndex(user);
+        Long2DoubleMap similarityCache = new Long2DoubleOpenHashMap();
+        similarityCache.defaultReturnValue(Double.NaN);
+        TopNSelector selector = new TopNSelector(neighborhoodSize);
 
         // This is the loop structure to iterate over items to score
         for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
             long item = e.getKey();
-            double prediction = predictedRating(user, item);
+            double prediction = predictedRating(user, userVector, userMean, userIndex,
+                                                similarityCache, selector, item);
             scores.set(e, prediction);
         }
     }
@@ -178,10 +208,6 @@ public class SimpleUserUserItemScorer extends AbstractItemScorer {
      * @return The rating vector.
      */
     private SparseVector getUserRatingVector(long user) {
-        UserHistory<Rating> history = userDao.getEventsForUser(user, Rating.class);
-        if (history == null) {
-            history = History.forUser(user);
-        }
-        return RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        return RatingIndexDAO.userRatingVector(userDao, user);
     }
 }
@@ -0,0 +1,124 @@
+package edu.umn.cs.recsys.uu;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Precomputed user neighborhoods for the user-user scorer.  Each user's most similar users are
+ * stored in decreasing order of similarity, so a prediction only has to walk the list until it
+ * has found enough neighbors who rated the item.
+ * <p>
+ * The neighborhoods are stored compactly, like those of the item-item model: the users are
+ * kept in a sorted array, and the neighbors of the user at index <i>i</i> occupy positions
+ * {@code neighborStart(i)} (inclusive) through {@code neighborEnd(i)} (exclusive) of shared
+ * neighbor ID and score arrays.
+ *
+ * @see SimpleUserUserModelBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(SimpleUserUserModelBuilder.class)
+public class SimpleUserUserModel implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final long[] userIds;
+    private final int[] offsets;
+    private final long[] neighborIds;
+    private final float[] neighborScores;
+
+    /**
+     * Create a new user-user model from its compact representation.
+     * @param users The user IDs, in increasing order.
+     * @param offs The neighborhood offsets, one more than the number of users.
+     * @param nbrIds The neighbor IDs.
+     * @param nbrScores The neighbor similarities.
+     */
+    SimpleUserUserModel(long[] users, int[] offs, long[] nbrIds, float[] nbrScores) {
+        userIds = users;
+        offsets = offs;
+        neighborIds = nbrIds;
+        neighborScores = nbrScores;
+    }
+
+    /**
+     * Create a model from the neighbor selectors of each user.  The selectors are cleared.
+     * @param users The user IDs, in increasing order.
+     * @param selectors The neighbor selector for each user.
+     * @return The user-user model.
+     */
+    static SimpleUserUserModel fromSelectors(long[] users, TopNSelector[] selectors) {
+        int[] offs = new int[users.length + 1];
+        long total = 0;
+        for (int i = 0; i < users.length; i++) {
+            total += selectors[i].size();
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many neighbors for one model");
+            }
+            offs[i + 1] = (int) total;
+        }
+        long[] nbrIds = new long[offs[users.length]];
+        float[] nbrScores = new float[offs[users.length]];
+        for (int i = 0; i < users.length; i++) {
+            selectors[i].finishInto(nbrIds, nbrScores, offs[i]);
+        }
+        return new SimpleUserUserModel(users, offs, nbrIds, nbrScores);
+    }
+
+    /**
+     * Query whether the model has a neighborhood for a user.
+     * @param user The user ID.
+     * @return {@code true} if the user was known when the model was built.
+     */
+    public boolean hasUser(long user) {
+        return userIndex(user) >= 0;
+    }
+
+    /**
+     * Get the index of a user.
+     * @param user The user ID.
+     * @return The user's index, or a negative value if the user is not in the model.
+     */
+    public int userIndex(long user) {
+        return Arrays.binarySearch(userIds, user);
+    }
+
+    /**
+     * Get the position of a user's first neighbor.
+     * @param idx The user index.
+     * @return The position of the user's first (most similar) neighbor.
+     */
+    public int neighborStart(int idx) {
+        return offsets[idx];
+    }
+
+    /**
+     * Get the end of a user's neighbors.
+     * @param idx The user index.
+     * @return The position after the user's last neighbor.
+     */
+    public int neighborEnd(int idx) {
+        return offsets[idx + 1];
+    }
+
+    /**
+     * Get the ID of the neighbor at a position.
+     * @param pos The neighbor position.
+     * @return The neighbor's user ID.
+     */
+    public long neighborId(int pos) {
+        return neighborIds[pos];
+    }
+
+    /**
+     * Get the similarity of the neighbor at a position.
+     * @param pos The neighbor position.
+     * @return The neighbor's similarity.
+     */
+    public double neighborScore(int pos) {
+        return neighborScores[pos];
+    }
+}
@@ -0,0 +1,79 @@
+package edu.umn.cs.recsys.uu;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+
+import org.grouplens.lenskit.collections.LongUtils;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Builder for the {@link SimpleUserUserModel}.  Computes the similarity of every pair of users
+ * once and keeps the most similar neighbors of each user.  The model size must be positive:
+ * keeping every neighbor would cost memory in proportion to the square of the number of users
+ * when the minimum similarity admits most pairs.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class SimpleUserUserModelBuilder implements Provider<SimpleUserUserModel> {
+    private static final Logger logger = LoggerFactory.getLogger(SimpleUserUserModelBuilder.class);
+    private final UserVectorModel userVectors;
+    private final int modelSize;
+    private final double minSimilarity;
+    private final int minCommonRatings;
+
+    /**
+     * Construct the model builder.
+     * @param vectors The normalized user vectors.
+     * @param nnbrs The number of neighbors to keep for each user.
+     * @param minSim The minimum similarity of a neighbor to the user.
+     * @param minCommon The minimum number of items a neighbor must have rated in common with
+     *                  the user.
+     */
+    @Inject
+    public SimpleUserUserModelBuilder(UserVectorModel vectors,
+                                      @UserModelSize int nnbrs,
+                                      @MinNeighborSimilarity double minSim,
+                                      @MinCommonRatings int minCommon) {
+        if (nnbrs <= 0) {
+            throw new IllegalArgumentException("user model size must be positive");
+        }
+        userVectors = vectors;
+        modelSize = nnbrs;
+        minSimilarity = minSim;
+        minCommonRatings = minCommon;
+    }
+
+    @Override
+    public SimpleUserUserModel get() {
+        LongSortedSet userSet = LongUtils.packedSet(userVectors.getUserIds());
+        long[] users = userSet.toLongArray();
+        int nusers = users.length;
+        SparseVector[] vectors = new SparseVector[nusers];
+        TopNSelector[] selectors = new TopNSelector[nusers];
+        int size = Math.min(modelSize, nusers);
+        for (int i = 0; i < nusers; i++) {
+            vectors[i] = userVectors.getNormalizedVector(users[i]);
+            selectors[i] = new TopNSelector(size);
+        }
+
+        // similarity is symmetric, so compute each pair once and offer it to both users
+        logger.info("computing neighborhoods for {} users", nusers);
+        for (int i = 0; i < nusers; i++) {
+            for (int j = i + 1; j < nusers; j++) {
+                double similarity = UserVectorModel.similarity(vectors[i], vectors[j], minCommonRatings);
+                if (similarity < minSimilarity) {
+                    continue;
+                }
+                selectors[i].put(users[j], similarity);
+                selectors[j].put(users[i], similarity);
+            }
+        }
+
+        return SimpleUserUserModel.fromSelectors(users, selectors);
+    }
+}
@@ -9,7 +9,10 @@ import org.grouplens.lenskit.core.LenskitConfiguration;
 import org.grouplens.lenskit.core.LenskitRecommender;
 import org.grouplens.lenskit.data.dao.EventDAO;
 import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.ItemEventDAO;
 import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.knn.NeighborhoodSize;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -115,6 +118,11 @@ public class UUMain {
               .to(MOOCRatingDAO.class);
         config.set(RatingFile.class)
               .to(new File("data/ratings.csv"));
+        // index the ratings by user and by item
+        config.bind(UserEventDAO.class)
+              .to(RatingIndexDAO.class);
+        config.bind(ItemEventDAO.class)
+              .to(RatingIndexDAO.class);
 
         // use custom item and user DAOs
         // our item DAO has title information
@@ -133,6 +141,10 @@ public class UUMain {
         // use the TF-IDF scorer you will implement to score items
         config.bind(ItemScorer.class)
               .to(SimpleUserUserItemScorer.class);
+        config.set(NeighborhoodSize.class)
+              .to(30);
+        config.set(UserModelSize.class)
+              .to(500);
         return config;
     }
 }
\ No newline at end of file
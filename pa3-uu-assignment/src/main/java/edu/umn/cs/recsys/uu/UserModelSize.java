@@ -0,0 +1,21 @@
+package edu.umn.cs.recsys.uu;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of neighbors kept for each user in the precomputed
+ * {@link SimpleUserUserModel}.  It must be positive, and should be comfortably larger than the
+ * neighborhood size, since only the neighbors who rated an item take part in its prediction.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(500)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface UserModelSize {
+}
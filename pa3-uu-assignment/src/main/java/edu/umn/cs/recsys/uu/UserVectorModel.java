@@ -0,0 +1,117 @@
+package edu.umn.cs.recsys.uu;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import java.io.Serializable;
+
+/**
+ * Model for the user-user scorer.  It stores each user's rating vector, mean-centered and
+ * scaled to unit length, along with the user's mean rating.  The cosine similarity of two
+ * users' mean-centered ratings is then just the dot product of their normalized vectors.
+ *
+ * @see UserVectorModelBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(UserVectorModelBuilder.class)
+public class UserVectorModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Long2ObjectMap<ImmutableSparseVector> normalizedVectors;
+    private final Long2DoubleMap means;
+
+    /**
+     * Construct the model.  This is package-private; models are built with the
+     * {@linkplain UserVectorModelBuilder model builder}.
+     *
+     * @param vectors The normalized rating vector of each user.
+     * @param means The mean rating of each user.
+     */
+    UserVectorModel(Long2ObjectMap<ImmutableSparseVector> vectors, Long2DoubleMap means) {
+        normalizedVectors = vectors;
+        this.means = means;
+    }
+
+    /**
+     * Query whether the model knows about a user.
+     * @param user The user ID.
+     * @return {@code true} if the user had ratings when the model was built.
+     */
+    public boolean hasUser(long user) {
+        return normalizedVectors.containsKey(user);
+    }
+
+    /**
+     * Get the IDs of the users in the model.
+     * @return The set of user IDs.
+     */
+    public LongSet getUserIds() {
+        return LongSets.unmodifiable(normalizedVectors.keySet());
+    }
+
+    /**
+     * Get a user's mean-centered, unit-length rating vector.
+     * @param user The user ID.
+     * @return The normalized rating vector (empty if the user is unknown).
+     */
+    public SparseVector getNormalizedVector(long user) {
+        SparseVector vec = normalizedVectors.get(user);
+        if (vec == null) {
+            return SparseVector.empty();
+        } else {
+            return vec;
+        }
+    }
+
+    /**
+     * Get a user's mean rating.
+     * @param user The user ID.
+     * @return The user's mean rating, or {@link Double#NaN} if the user is unknown.
+     */
+    public double getMean(long user) {
+        if (means.containsKey(user)) {
+            return means.get(user);
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Compute the similarity of two users from their normalized rating vectors.  This is the
+     * cosine similarity of their mean-centered ratings.
+     *
+     * @param v1 The first user's normalized vector.
+     * @param v2 The second user's normalized vector.
+     * @param minCommon The minimum number of items the users must have rated in common.
+     * @return The similarity, or negative infinity if the users have rated fewer than
+     *         {@code minCommon} items in common.
+     */
+    static double similarity(SparseVector v1, SparseVector v2, int minCommon) {
+        if (minCommon <= 0) {
+            return v1.dot(v2);
+        }
+        SparseVector small = v1.size() <= v2.size() ? v1 : v2;
+        SparseVector large = v1.size() <= v2.size() ? v2 : v1;
+        if (small.size() < minCommon) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int common = 0;
+        double dot = 0.0;
+        for (VectorEntry e : small.fast(VectorEntry.State.SET)) {
+            long item = e.getKey();
+            if (large.containsKey(item)) {
+                common++;
+                dot += e.getValue() * large.get(item);
+            }
+        }
+        return common >= minCommon ? dot : Double.NEGATIVE_INFINITY;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.umn.cs.recsys.uu;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Builder for the {@link UserVectorModel}.  Normalizes every user's rating vector once, so
+ * scoring does not have to copy and mean-center vectors for each similarity.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class UserVectorModelBuilder implements Provider<UserVectorModel> {
+    private static final Logger logger = LoggerFactory.getLogger(UserVectorModelBuilder.class);
+    private final UserEventDAO userEventDao;
+
+    @Inject
+    public UserVectorModelBuilder(@Transient UserEventDAO uedao) {
+        userEventDao = uedao;
+    }
+
+    @Override
+    public UserVectorModel get() {
+        Long2ObjectMap<ImmutableSparseVector> vectors = new Long2ObjectOpenHashMap<ImmutableSparseVector>();
+        Long2DoubleMap means = new Long2DoubleOpenHashMap();
+
+        Cursor<UserHistory<Event>> stream = userEventDao.streamEventsByUser();
+        try {
+            for (UserHistory<Event> history: stream) {
+                long user = history.getUserId();
+                MutableSparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(history).mutableCopy();
+                if (vector.size() == 0) {
+                    continue;
+                }
+                means.put(user, normalize(vector));
+                vectors.put(user, vector.freeze());
+            }
+        } finally {
+            stream.close();
+        }
+        logger.info("normalized rating vectors for {} users", vectors.size());
+
+        return new UserVectorModel(vectors, means);
+    }
+
+    /**
+     * Mean-center a rating vector and scale it to unit length.  A vector whose ratings are all
+     * equal to the mean is left as all zeros.
+     *
+     * @param vector The rating vector to normalize in place.
+     * @return The mean of the original ratings.
+     */
+    static double normalize(MutableSparseVector vector) {
+        double mean = vector.mean();
+        vector.add(-mean);
+        double norm = vector.norm();
+        if (norm > 0) {
+            vector.multiply(1 / norm);
+        }
+        return mean;
+    }
+}
@@ -0,0 +1,173 @@
+package edu.umn.cs.recsys.dao;
+
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemEventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.History;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RatingIndexDAOTest {
+    private static final long[] USERS = {1, 2, 3};
+    private static final long[] ITEMS = {10, 11, 12, 13};
+
+    private List<Event> events;
+
+    @Before
+    public void createEvents() {
+        events = new ArrayList<Event>();
+        // out of timestamp order, with re-ratings and an unrate
+        events.add(Ratings.make(1, 10, 3.0, 5));
+        events.add(Ratings.make(1, 11, 4.0, 2));
+        events.add(Ratings.make(2, 10, 2.0, 1));
+        events.add(Ratings.make(1, 10, 5.0, 7));
+        events.add(Ratings.newBuilder().setUserId(2).setItemId(11).setTimestamp(3).build());
+        events.add(Ratings.make(2, 11, 1.0, 2));
+        events.add(Ratings.make(3, 12, 4.5, 4));
+        events.add(Ratings.make(2, 12, 3.5, 4));
+        events.add(Ratings.newBuilder().setUserId(3).setItemId(13).setTimestamp(1).build());
+        events.add(Ratings.make(3, 13, 2.5, 0));
+    }
+
+    /**
+     * Sort events by timestamp, keeping equal timestamps in their original order.
+     */
+    private static List<Event> byTime(List<? extends Event> list) {
+        List<Event> sorted = new ArrayList<Event>(list);
+        Collections.sort(sorted, new Comparator<Event>() {
+            @Override
+            public int compare(Event e1, Event e2) {
+                long t1 = e1.getTimestamp();
+                long t2 = e2.getTimestamp();
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+        return sorted;
+    }
+
+    @Test
+    public void testUserHistoriesMatchBaseDAO() {
+        EventDAO base = new EventCollectionDAO(events);
+        RatingIndexDAO index = new RatingIndexDAO(base);
+        PrefetchingUserEventDAO expected = new PrefetchingUserEventDAO(base);
+        for (long user: USERS) {
+            UserHistory<Event> history = index.getEventsForUser(user);
+            assertThat(history.getUserId(), equalTo(user));
+            assertThat(history, contains(byTime(expected.getEventsForUser(user)).toArray()));
+            UserHistory<Rating> ratings = index.getEventsForUser(user, Rating.class);
+            assertThat(ratings.size(), equalTo(history.size()));
+        }
+        assertThat(index.getEventsForUser(42), nullValue());
+    }
+
+    @Test
+    public void testItemHistoriesMatchBaseDAO() {
+        EventDAO base = new EventCollectionDAO(events);
+        RatingIndexDAO index = new RatingIndexDAO(base);
+        PrefetchingItemEventDAO expected = new PrefetchingItemEventDAO(base);
+        for (long item: ITEMS) {
+            assertThat(index.getEventsForItem(item),
+                       contains(byTime(expected.getEventsForItem(item)).toArray()));
+            assertThat(index.getUsersForItem(item),
+                       equalTo(RatingIndexDAO.itemRatingVector(expected, item).keySet()));
+        }
+        assertThat(index.getEventsForItem(42), nullValue());
+    }
+
+    @Test
+    public void testRatingVectorsKeepLatestRatings() {
+        EventDAO base = new EventCollectionDAO(events);
+        RatingIndexDAO index = new RatingIndexDAO(base);
+        PrefetchingUserEventDAO expected = new PrefetchingUserEventDAO(base);
+        for (long user: USERS) {
+            SparseVector vector = index.getUserRatingVector(user);
+            UserHistory<Event> history = History.forUser(user, byTime(expected.getEventsForUser(user)));
+            assertThat(vector, equalTo(RatingVectorUserHistorySummarizer.makeRatingVector(history)));
+        }
+        // re-rated: the later rating wins
+        assertThat(index.getUserRatingVector(1).get(10), closeTo(5.0, 1.0e-9));
+        // unrated after the (earlier-stamped) rating
+        assertThat(index.getUserRatingVector(3).containsKey(13), equalTo(false));
+        assertThat(index.getUserRatingVector(2).containsKey(11), equalTo(false));
+        assertThat(index.getItemRatingVector(12).keySet(), contains(2L, 3L));
+        assertThat(index.getUserRatingVector(42).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testStreamByUserIsSorted() {
+        RatingIndexDAO index = new RatingIndexDAO(new EventCollectionDAO(events));
+        Cursor<Event> cursor = index.streamEvents(Event.class, SortOrder.USER);
+        List<Event> streamed = new ArrayList<Event>();
+        try {
+            for (Event e: cursor) {
+                streamed.add(e);
+            }
+        } finally {
+            cursor.close();
+        }
+        assertThat(streamed, hasSize(events.size()));
+        for (int i = 1; i < streamed.size(); i++) {
+            Event prev = streamed.get(i - 1);
+            Event cur = streamed.get(i);
+            assertThat(prev.getUserId(), lessThanOrEqualTo(cur.getUserId()));
+            if (prev.getUserId() == cur.getUserId()) {
+                assertThat(prev.getTimestamp(), lessThanOrEqualTo(cur.getTimestamp()));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherEventsFallBackToBaseDAO() {
+        Event other = new Event() {
+            @Override
+            public long getUserId() {
+                return 1;
+            }
+
+            @Override
+            public long getItemId() {
+                return 12;
+            }
+
+            @Override
+            public long getTimestamp() {
+                return 6;
+            }
+        };
+        events.add(other);
+        RatingIndexDAO index = new RatingIndexDAO(new EventCollectionDAO(events));
+        assertThat(index.getEventsForUser(1), hasItem(other));
+        assertThat(index.getEventsForItem(12), hasItem(other));
+        assertThat(index.getEventsForUser(1, Rating.class), hasSize(3));
+        assertThat(index.getUserRatingVector(1).keySet(), equalTo(
+                RatingIndexDAO.userRatingVector(new PrefetchingUserEventDAO(
+                        new EventCollectionDAO(events)), 1).keySet()));
+        int users = 0;
+        Cursor<UserHistory<Event>> cursor = index.streamEventsByUser();
+        try {
+            for (UserHistory<Event> history: cursor) {
+                users++;
+            }
+        } finally {
+            cursor.close();
+        }
+        assertThat(users, equalTo(USERS.length));
+    }
+}
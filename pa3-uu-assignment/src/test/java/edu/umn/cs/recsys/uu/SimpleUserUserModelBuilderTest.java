@@ -0,0 +1,68 @@
+package edu.umn.cs.recsys.uu;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SimpleUserUserModelBuilderTest {
+    private static final int USERS = 15;
+
+    private UserVectorModel vectors;
+
+    @Before
+    public void createVectors() {
+        Random rng = new Random(3);
+        List<Event> events = new ArrayList<Event>();
+        for (long u = 1; u <= USERS; u++) {
+            for (long i = 1; i <= 20; i++) {
+                if (rng.nextInt(2) == 0) {
+                    events.add(Ratings.make(u, i, 1 + rng.nextInt(5), u * 100 + i));
+                }
+            }
+        }
+        vectors = new UserVectorModelBuilder(
+                new PrefetchingUserEventDAO(new EventCollectionDAO(events))).get();
+    }
+
+    @Test
+    public void testNeighborsMatchBruteForce() {
+        SimpleUserUserModel model = new SimpleUserUserModelBuilder(vectors, 4, -1.0, 0).get();
+        for (long u = 1; u <= USERS; u++) {
+            TopNSelector selector = new TopNSelector(4);
+            for (long v = 1; v <= USERS; v++) {
+                if (v != u) {
+                    selector.put(v, UserVectorModel.similarity(vectors.getNormalizedVector(u),
+                                                               vectors.getNormalizedVector(v), 0));
+                }
+            }
+            List<ScoredId> expected = selector.finishList();
+            int idx = model.userIndex(u);
+            int start = model.neighborStart(idx);
+            assertThat(model.neighborEnd(idx) - start, equalTo(expected.size()));
+            for (int n = 0; n < expected.size(); n++) {
+                assertThat(model.neighborId(start + n), equalTo(expected.get(n).getId()));
+                assertThat(model.neighborScore(start + n),
+                           closeTo(expected.get(n).getScore(), 1.0e-6));
+            }
+        }
+        assertThat(model.hasUser(USERS + 1), equalTo(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnboundedModel() {
+        new SimpleUserUserModelBuilder(vectors, 0, -1.0, 0);
+    }
+}
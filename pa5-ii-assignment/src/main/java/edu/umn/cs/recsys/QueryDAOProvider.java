@@ -1,7 +1,7 @@
 package edu.umn.cs.recsys;
 
+import edu.umn.cs.recsys.dao.RatingIndexDAO;
 import org.grouplens.lenskit.data.dao.EventDAO;
-import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
 import org.grouplens.lenskit.data.dao.UserEventDAO;
 import org.grouplens.lenskit.eval.data.traintest.QueryData;
 
@@ -21,6 +21,6 @@ public class QueryDAOProvider implements Provider<UserEventDAO> {
     }
     @Override
     public UserEventDAO get() {
-        return new PrefetchingUserEventDAO(queryEvents);
+        return new RatingIndexDAO(queryEvents);
     }
 }
\ No newline at end of file
@@ -13,18 +13,23 @@ import java.io.File;
 
 /**
  * Customized rating DAO for MOOC ratings.  This just wraps some standard LensKit DAOs in an
- * easy-to-configure interface.
+ * easy-to-configure interface.  If a {@linkplain PackedRatingDAO packed rating file} is present
+ * next to the CSV file and is at least as new, the ratings are memory-mapped from it instead of
+ * being parsed.
  *
+ * @see PackedRatingDAO
  * @see org.grouplens.lenskit.data.dao.EventCollectionDAO
  * @see org.grouplens.lenskit.data.dao.SimpleFileRatingDAO
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class MOOCRatingDAO implements EventDAO {
+    private final File ratingFile;
     private final SimpleFileRatingDAO csvDao;
-    private transient volatile EventCollectionDAO cache;
+    private transient volatile EventDAO cache;
 
     @Inject
     public MOOCRatingDAO(@RatingFile File file) {
+        ratingFile = file;
         csvDao = new SimpleFileRatingDAO(file, ",");
     }
 
@@ -35,7 +40,12 @@ public class MOOCRatingDAO implements EventDAO {
         if (cache == null) {
             synchronized (this) {
                 if (cache == null) {
-                    cache = new EventCollectionDAO(Cursors.makeList(csvDao.streamEvents()));
+                    File packed = PackedRatingDAO.packedFileFor(ratingFile);
+                    if (packed.isFile() && packed.lastModified() >= ratingFile.lastModified()) {
+                        cache = PackedRatingDAO.open(packed);
+                    } else {
+                        cache = new EventCollectionDAO(Cursors.makeList(csvDao.streamEvents()));
+                    }
                 }
             }
         }
@@ -43,21 +53,21 @@ public class MOOCRatingDAO implements EventDAO {
 
     @Override
     public Cursor<Event> streamEvents() {
-        // delegate to the cached event collection DAO
+        // delegate to the cached event DAO
         ensureRatingCache();
         return cache.streamEvents();
     }
 
     @Override
     public <E extends Event> Cursor<E> streamEvents(Class<E> type) {
-        // delegate to the cached event collection DAO
+        // delegate to the cached event DAO
         ensureRatingCache();
         return cache.streamEvents(type);
     }
 
     @Override
     public <E extends Event> Cursor<E> streamEvents(Class<E> type, SortOrder order) {
-        // delegate to the cached event collection DAO
+        // delegate to the cached event DAO
         ensureRatingCache();
         return cache.streamEvents(type, order);
     }
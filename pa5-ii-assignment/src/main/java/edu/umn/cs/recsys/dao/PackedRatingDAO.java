@@ -0,0 +1,343 @@
+package edu.umn.cs.recsys.dao;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.grouplens.lenskit.cursors.AbstractCursor;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.cursors.Cursors;
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.SimpleFileRatingDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.pref.Preference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Event DAO serving ratings from a packed, memory-mapped rating file.  The file stores the
+ * ratings as four parallel columns (user IDs, item IDs, values and timestamps), so loading it
+ * does no parsing and keeps no rating objects on the heap; events are only created as they are
+ * streamed.
+ * <p>
+ * Packed files are written by {@link #pack(File, File)}, or from the command line with
+ * {@code pack-ratings data/ratings.csv}.  A file is mapped as a single buffer, so it can hold
+ * at most {@value #MAX_RATINGS} ratings.
+ *
+ * @see MOOCRatingDAO
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class PackedRatingDAO implements EventDAO {
+    private static final Logger logger = LoggerFactory.getLogger(PackedRatingDAO.class);
+
+    /**
+     * Magic number at the start of every packed rating file ("MRAT").
+     */
+    static final int MAGIC = 0x4D524154;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    /**
+     * The number of bytes each rating takes in the file (four 8-byte columns).
+     */
+    private static final int RATING_SIZE = 32;
+    /**
+     * The largest number of ratings whose file fits in one mapped buffer.
+     */
+    public static final int MAX_RATINGS = (Integer.MAX_VALUE - HEADER_SIZE) / RATING_SIZE;
+
+    private final int size;
+    private final LongBuffer users;
+    private final LongBuffer items;
+    private final DoubleBuffer values;
+    private final LongBuffer timestamps;
+
+    private transient volatile int[] userOrder;
+    private transient volatile int[] itemOrder;
+    private transient volatile int[] timeOrder;
+
+    private PackedRatingDAO(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new DataAccessException("not a packed rating file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new DataAccessException("unsupported packed rating file version " + buffer.getInt(4));
+        }
+        int n = buffer.getInt(8);
+        if (n < 0 || n > MAX_RATINGS) {
+            throw new DataAccessException("invalid rating count " + n);
+        }
+        if (buffer.capacity() < fileSize(n)) {
+            throw new DataAccessException("truncated packed rating file: " + n + " ratings need "
+                                          + fileSize(n) + " bytes, found " + buffer.capacity());
+        }
+        size = n;
+        users = column(buffer, 0).asLongBuffer();
+        items = column(buffer, 1).asLongBuffer();
+        values = column(buffer, 2).asDoubleBuffer();
+        timestamps = column(buffer, 3).asLongBuffer();
+    }
+
+    private ByteBuffer column(ByteBuffer buffer, int col) {
+        // the size check bounds these offsets by the buffer capacity, so they fit in an int
+        long start = HEADER_SIZE + (long) col * 8 * size;
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit((int) (start + 8L * size));
+        dup.position((int) start);
+        return dup.slice();
+    }
+
+    /**
+     * Get the size of the file holding a number of ratings.
+     * @param n The number of ratings.
+     * @return The file size in bytes.
+     */
+    static long fileSize(long n) {
+        return HEADER_SIZE + n * RATING_SIZE;
+    }
+
+    /**
+     * Memory-map a packed rating file.
+     * @param file The packed file.
+     * @return A DAO serving the ratings in the file.
+     */
+    public static PackedRatingDAO open(File file) {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            throw new DataAccessException("cannot open file", e);
+        }
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new DataAccessException("truncated packed rating file " + file);
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new DataAccessException("packed rating file " + file + " too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            PackedRatingDAO dao = new PackedRatingDAO(buffer);
+            logger.info("mapped {} ratings from {}", dao.size, file);
+            return dao;
+        } catch (IOException e) {
+            throw new DataAccessException("cannot map file " + file, e);
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("error closing {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Get the packed file used in place of a CSV rating file, if it is present.
+     * @param csvFile The CSV rating file.
+     * @return The packed file (<tt>ratings.pack</tt> next to <tt>ratings.csv</tt>).
+     */
+    public static File packedFileFor(File csvFile) {
+        String name = csvFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(csvFile.getParentFile(), name + ".pack");
+    }
+
+    /**
+     * Convert a CSV rating file to the packed format.
+     * @param csvFile The CSV file to read.
+     * @param output The packed file to write.
+     * @return The number of ratings written.
+     * @throws IOException if there is an error writing the output, or the CSV file has more
+     *                     than {@link #MAX_RATINGS} ratings.
+     */
+    public static int pack(File csvFile, File output) throws IOException {
+        LongArrayList uids = new LongArrayList();
+        LongArrayList iids = new LongArrayList();
+        DoubleArrayList vals = new DoubleArrayList();
+        LongArrayList times = new LongArrayList();
+        Cursor<Rating> ratings = new SimpleFileRatingDAO(csvFile, ",").streamEvents(Rating.class);
+        try {
+            for (Rating r: ratings) {
+                Preference p = r.getPreference();
+                if (p == null) {
+                    continue;
+                }
+                if (uids.size() >= MAX_RATINGS) {
+                    throw new IOException(csvFile + " has more than " + MAX_RATINGS
+                                          + " ratings, too many for one packed file");
+                }
+                uids.add(p.getUserId());
+                iids.add(p.getItemId());
+                vals.add(p.getValue());
+                times.add(r.getTimestamp());
+            }
+        } finally {
+            ratings.close();
+        }
+
+        int n = uids.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(0);
+            for (int i = 0; i < n; i++) {
+                out.writeLong(uids.getLong(i));
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeLong(iids.getLong(i));
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(vals.getDouble(i));
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeLong(times.getLong(i));
+            }
+        } finally {
+            out.close();
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of ratings in the file.
+     * @return The rating count.
+     */
+    public int size() {
+        return size;
+    }
+
+    private Rating makeRating(int i) {
+        return Ratings.make(users.get(i), items.get(i), values.get(i), timestamps.get(i));
+    }
+
+    /**
+     * Get the order in which to stream ratings for a sort order.
+     * @return The row permutation, or {@code null} to use file order.
+     */
+    private int[] getOrder(SortOrder order) {
+        switch (order) {
+        case USER:
+            if (userOrder == null) {
+                userOrder = sortRows(users);
+            }
+            return userOrder;
+        case ITEM:
+            if (itemOrder == null) {
+                itemOrder = sortRows(items);
+            }
+            return itemOrder;
+        case TIMESTAMP:
+            if (timeOrder == null) {
+                timeOrder = sortRows(timestamps);
+            }
+            return timeOrder;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Sort the rows by a key column, breaking ties by timestamp.
+     */
+    private int[] sortRows(final LongBuffer keys) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        IntArrays.quickSort(rows, new AbstractIntComparator() {
+            @Override
+            public int compare(int r1, int r2) {
+                long k1 = keys.get(r1);
+                long k2 = keys.get(r2);
+                if (k1 != k2) {
+                    return k1 < k2 ? -1 : 1;
+                }
+                long t1 = timestamps.get(r1);
+                long t2 = timestamps.get(r2);
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+        return rows;
+    }
+
+    @Override
+    public Cursor<Event> streamEvents() {
+        return streamEvents(Event.class, SortOrder.ANY);
+    }
+
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type) {
+        return streamEvents(type, SortOrder.ANY);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type, SortOrder order) {
+        if (!type.isAssignableFrom(Rating.class)) {
+            return Cursors.empty();
+        }
+        return (Cursor<E>) new RatingCursor(getOrder(order));
+    }
+
+    private class RatingCursor extends AbstractCursor<Rating> {
+        private final int[] rows;
+        private int next = 0;
+
+        RatingCursor(int[] order) {
+            rows = order;
+        }
+
+        @Override
+        public int getRowCount() {
+            return size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Rating next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            int row = rows == null ? next : rows[next];
+            next++;
+            return makeRating(row);
+        }
+    }
+
+    /**
+     * Convert a CSV rating file to a packed rating file.
+     * @param args The CSV file, and optionally the output file (defaults to the
+     *             {@linkplain #packedFileFor(File) packed file} next to it).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: pack-ratings RATINGS.csv [OUTPUT.pack]");
+            System.exit(1);
+        }
+        File csv = new File(args[0]);
+        File output = args.length > 1 ? new File(args[1]) : packedFileFor(csv);
+        int n = pack(csv, output);
+        logger.info("packed {} ratings from {} into {}", new Object[]{n, csv, output});
+    }
+}
@@ -0,0 +1,156 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.lenskit.collections.LongUtils;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.knn.item.ModelSize;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Item-item model builder that accumulates similarities from co-ratings.  Rather than comparing
+ * every pair of item vectors, it streams over the users once, adding the product of each pair of
+ * the user's mean-centered ratings to that pair's dot product, and then divides the dot products
+ * by the item norms.  Pairs of items with no common raters are never touched, so the build cost
+ * grows with the sum of squared user profile sizes instead of with the square of the number of
+ * items.
+ * <p>
+ * The similarities are the same cosine similarities {@link SimpleItemItemModelBuilder} computes,
+ * and the neighbor lists are truncated and written to the {@link ModelFile} the same way.
+ * To use this builder, bind it as the model provider:
+ * <pre>
+ * config.bind(SimpleItemItemModel.class)
+ *       .toProvider(CoRatingItemItemModelBuilder.class);
+ * </pre>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class CoRatingItemItemModelBuilder implements Provider<SimpleItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(CoRatingItemItemModelBuilder.class);
+
+    private final ItemDAO itemDao;
+    private final UserEventDAO userEventDao;
+    private final int modelSize;
+    private final File modelFile;
+
+    /**
+     * Construct the model builder.
+     * @param idao The item DAO.
+     * @param uedao The user event DAO.
+     * @param nnbrs The number of neighbors to keep for each item (0 to keep all of them).
+     * @param file The file to write the model to, or {@code null} to not write it.
+     */
+    @Inject
+    public CoRatingItemItemModelBuilder(@Transient ItemDAO idao,
+                                        @Transient UserEventDAO uedao,
+                                        @ModelSize int nnbrs,
+                                        @Nullable @ModelFile File file) {
+        itemDao = idao;
+        userEventDao = uedao;
+        modelSize = nnbrs;
+        modelFile = file;
+    }
+
+    @Override
+    public SimpleItemItemModel get() {
+        LongSortedSet items = LongUtils.packedSet(itemDao.getItemIds());
+        long[] itemIds = items.toLongArray();
+        int nitems = itemIds.length;
+
+        // dots[i] maps j > i to the dot product of items i and j
+        Int2DoubleOpenHashMap[] dots = new Int2DoubleOpenHashMap[nitems];
+        for (int i = 0; i < nitems; i++) {
+            dots[i] = new Int2DoubleOpenHashMap();
+        }
+        double[] sqnorms = new double[nitems];
+
+        // scratch space for each user's rated item indexes and centered ratings
+        int[] indexes = new int[16];
+        double[] values = new double[nitems];
+        int nusers = 0;
+        long npairs = 0;
+
+        Cursor<UserHistory<Event>> stream = userEventDao.streamEventsByUser();
+        try {
+            for (UserHistory<Event> evt: stream) {
+                MutableSparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(evt).mutableCopy();
+                double mean = vector.mean();
+                indexes = IntArrays.grow(indexes, vector.size());
+                int n = 0;
+                for (VectorEntry e: vector.fast(VectorEntry.State.SET)) {
+                    int idx = Arrays.binarySearch(itemIds, e.getKey());
+                    if (idx < 0) {
+                        continue;
+                    }
+                    double v = e.getValue() - mean;
+                    values[idx] = v;
+                    sqnorms[idx] += v * v;
+                    indexes[n++] = idx;
+                }
+                // the vector's keys are sorted, so are the indexes; each pair is (lower, higher)
+                for (int a = 0; a < n; a++) {
+                    int i = indexes[a];
+                    double vi = values[i];
+                    if (vi == 0.0) {
+                        continue;
+                    }
+                    Int2DoubleOpenHashMap row = dots[i];
+                    for (int b = a + 1; b < n; b++) {
+                        int j = indexes[b];
+                        double vj = values[j];
+                        if (vj != 0.0) {
+                            row.addTo(j, vi * vj);
+                            npairs++;
+                        }
+                    }
+                }
+                nusers++;
+            }
+        } finally {
+            stream.close();
+        }
+        logger.info("accumulated {} co-ratings from {} users", npairs, nusers);
+
+        double[] norms = new double[nitems];
+        for (int i = 0; i < nitems; i++) {
+            norms[i] = Math.sqrt(sqnorms[i]);
+        }
+
+        int size = SimpleItemItemModelBuilder.selectorSize(modelSize, nitems);
+        TopNSelector[] selectors = new TopNSelector[nitems];
+        for (int i = 0; i < nitems; i++) {
+            selectors[i] = new TopNSelector(size);
+        }
+        for (int i = 0; i < nitems; i++) {
+            for (Int2DoubleMap.Entry e: dots[i].int2DoubleEntrySet()) {
+                int j = e.getIntKey();
+                double similarity = e.getDoubleValue() / (norms[i] * norms[j]);
+                if (similarity > 0.0) {
+                    selectors[i].put(itemIds[j], similarity);
+                    selectors[j].put(itemIds[i], similarity);
+                }
+            }
+            dots[i] = null;
+        }
+
+        return SimpleItemItemModelBuilder.finishModel(itemIds, selectors, modelFile);
+    }
+}
@@ -9,10 +9,18 @@ import org.grouplens.lenskit.ItemScorer;
 import org.grouplens.lenskit.RecommenderBuildException;
 import org.grouplens.lenskit.core.LenskitConfiguration;
 import org.grouplens.lenskit.core.LenskitRecommender;
+import org.grouplens.lenskit.cursors.Cursors;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
 import org.grouplens.lenskit.data.dao.EventDAO;
 import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.ItemEventDAO;
 import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.SimpleFileRatingDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
 import org.grouplens.lenskit.knn.NeighborhoodSize;
+import org.grouplens.lenskit.knn.item.ModelSize;
 import org.grouplens.lenskit.scored.ScoredId;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.slf4j.Logger;
@@ -28,15 +36,25 @@ import java.util.regex.Pattern;
  */
 public class IIMain {
     private static final Logger logger = LoggerFactory.getLogger("ii-assignment");
+    private static final int MODEL_SIZE = 0;
+    private static final int NEIGHBORHOOD_SIZE = 20;
 
     /**
      * Main entry point to the program.
-     * @param args The <tt>user:item</tt> pairs to score.
+     * @param args The <tt>user:item</tt> pairs to score.  With <tt>--update FILE</tt> first,
+     *             the ratings in <tt>FILE</tt> are applied to the model before scoring, and
+     *             all users are scored if no pairs follow.
      */
     public static void main(String[] args) {
         Map<Long,Set<Long>> toScore = null;
         Set<Long> basket = null;
-        if (args.length == 1 && args[0].equals("--all")) {
+        File updateFile = null;
+        if (args.length >= 2 && args[0].equals("--update")) {
+            updateFile = new File(args[1]);
+            if (args.length > 2) {
+                toScore = parseArgs(Arrays.copyOfRange(args, 2, args.length));
+            }
+        } else if (args.length == 1 && args[0].equals("--all")) {
             logger.info("scoring for all users");
         } else if (args.length >= 1 && args[0].equals("--basket")) {
             basket = new HashSet<Long>();
@@ -47,7 +65,7 @@ public class IIMain {
             toScore = parseArgs(args);
         }
 
-        LenskitConfiguration config = configureRecommender();
+        LenskitConfiguration config = configureRecommender(updateFile != null);
         LenskitRecommender rec;
         try {
             rec = LenskitRecommender.build(config);
@@ -74,6 +92,9 @@ public class IIMain {
         // Get the item scorer and go!
         ItemScorer scorer = rec.getItemScorer();
         assert scorer != null;
+        if (updateFile != null) {
+            scorer = applyUpdates(rec, updateFile);
+        }
 
         if (toScore == null) {
             logger.debug("loading user/item sets");
@@ -109,6 +130,27 @@ public class IIMain {
         }
     }
 
+    /**
+     * Apply a file of new ratings to the item-item model.  The recommender must have been
+     * configured to take its model from an updater, so the updater that built the model is
+     * reused rather than built again.
+     * @param rec The recommender.
+     * @param file The rating file, in the same format as the main rating file.
+     * @return An item scorer using the updated model and all the ratings.
+     */
+    private static ItemScorer applyUpdates(LenskitRecommender rec, File file) {
+        List<Rating> ratings = Cursors.makeList(new SimpleFileRatingDAO(file, ",").streamEvents(Rating.class));
+        SimpleItemItemModelUpdater updater = rec.get(SimpleItemItemModelUpdater.class);
+        SimpleItemItemModel model = updater.update(ratings);
+
+        // users' histories must include the new ratings as well
+        List<Event> events = Cursors.makeList(rec.get(EventDAO.class).streamEvents());
+        events.addAll(ratings);
+        UserEventDAO dao = new RatingIndexDAO(new EventCollectionDAO(events));
+        logger.info("applied {} ratings from {}", ratings.size(), file);
+        return new SimpleItemItemScorer(model, dao, NEIGHBORHOOD_SIZE);
+    }
+
     /**
      * Parse the command line arguments.
      * @param args The command line arguments.
@@ -137,17 +179,23 @@ public class IIMain {
 
     /**
      * Create the LensKit recommender configuration.
+     * @param updatable Whether to build the model with an updater that can apply new ratings.
      * @return The LensKit recommender configuration.
      */
     // LensKit configuration API generates some unchecked warnings, turn them off
     @SuppressWarnings("unchecked")
-    private static LenskitConfiguration configureRecommender() {
+    private static LenskitConfiguration configureRecommender(boolean updatable) {
         LenskitConfiguration config = new LenskitConfiguration();
         // configure the rating data source
         config.bind(EventDAO.class)
               .to(MOOCRatingDAO.class);
         config.set(RatingFile.class)
               .to(new File("data/ratings.csv"));
+        // index the ratings by user and by item
+        config.bind(UserEventDAO.class)
+              .to(RatingIndexDAO.class);
+        config.bind(ItemEventDAO.class)
+              .to(RatingIndexDAO.class);
 
         // use custom item and user DAOs
         // our item DAO has title information
@@ -169,8 +217,17 @@ public class IIMain {
         config.bind(ItemScorer.class)
               .to(SimpleItemItemScorer.class);
         config.bind(GlobalItemScorer.class).to(SimpleGlobalItemScorer.class);
+        config.bind(GlobalItemRecommender.class).to(SimpleGlobalItemRecommender.class);
         config.set(NeighborhoodSize.class)
-              .to(20);
+              .to(NEIGHBORHOOD_SIZE);
+        config.set(ModelSize.class)
+              .to(MODEL_SIZE);
+        if (updatable) {
+            // build the model with the updater, which keeps its statistics for the updates
+            config.bind(SimpleItemItemModel.class)
+                  .toProvider(UpdatableItemItemModelProvider.class);
+            config.addRoot(SimpleItemItemModelUpdater.class);
+        }
         return config;
     }
 }
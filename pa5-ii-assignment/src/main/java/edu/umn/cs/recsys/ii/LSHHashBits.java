@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of random hyperplanes (signature bits) in each LSH hash table.
+ * More bits make smaller buckets.  It must be between 1 and 63.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(12)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LSHHashBits {
+}
@@ -0,0 +1,280 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.collections.LongUtils;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.knn.item.ModelSize;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Approximate item-item model builder using random-projection locality-sensitive hashing.
+ * Each of several hash tables signs the mean-centered item vectors against a set of random
+ * hyperplanes, so items with a small angle between them tend to share a signature.  Each
+ * item's neighbors are then chosen, by exact cosine similarity, from only the items sharing
+ * one of its signatures, which avoids comparing all pairs of items.
+ * <p>
+ * The hyperplanes have random &plusmn;1 weights derived by hashing the user ID, so they need
+ * no storage.  More tables raise recall; more bits per table shrink the buckets and speed up
+ * the build.  Items whose vectors have zero norm are similar to nothing, so they are not
+ * hashed and get no neighbors.  If {@link LSHRecallSample} is set, the builder reports its recall@<i>K</i> (with
+ * <i>K</i> the model size) against exact search on a random sample of items.  To use this
+ * builder, bind it as the {@link SimpleItemItemModel} provider.
+ * <p>
+ * Unlike the exact builder, this builder requires a positive {@link ModelSize}: the point of
+ * hashing is to keep a few good neighbors per item, and keeping every candidate would cost
+ * memory quadratic in the bucket sizes and make the recall check meaningless.  It finishes the
+ * model the same way as {@link SimpleItemItemModelBuilder}, including writing the
+ * {@linkplain ModelFile model file}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class LSHItemItemModelBuilder implements Provider<SimpleItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(LSHItemItemModelBuilder.class);
+    private static final CosineVectorSimilarity cvs = new CosineVectorSimilarity();
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final ItemDAO itemDao;
+    private final UserEventDAO userEventDao;
+    private final int modelSize;
+    private final int tableCount;
+    private final int hashBits;
+    private final int recallSample;
+    private final File modelFile;
+
+    /**
+     * Construct the model builder.
+     * @param idao The item DAO.
+     * @param uedao The user event DAO.
+     * @param nnbrs The number of neighbors to keep for each item (must be positive).
+     * @param ntables The number of hash tables (must be positive).
+     * @param nbits The number of signature bits per table (between 1 and 63).
+     * @param nsample The number of items to check recall on (0 for none).
+     * @param file The file to write the model to, or {@code null} to not write it.
+     */
+    @Inject
+    public LSHItemItemModelBuilder(@Transient ItemDAO idao,
+                                   @Transient UserEventDAO uedao,
+                                   @ModelSize int nnbrs,
+                                   @LSHTableCount int ntables,
+                                   @LSHHashBits int nbits,
+                                   @LSHRecallSample int nsample,
+                                   @Nullable @ModelFile File file) {
+        if (nnbrs <= 0) {
+            throw new IllegalArgumentException("LSH model size must be positive");
+        }
+        if (ntables <= 0) {
+            throw new IllegalArgumentException("LSH table count must be positive");
+        }
+        if (nbits < 1 || nbits > 63) {
+            throw new IllegalArgumentException("hash bits must be between 1 and 63");
+        }
+        itemDao = idao;
+        userEventDao = uedao;
+        modelSize = nnbrs;
+        tableCount = ntables;
+        hashBits = nbits;
+        recallSample = nsample;
+        modelFile = file;
+    }
+
+    @Override
+    public SimpleItemItemModel get() {
+        Map<Long, ImmutableSparseVector> itemVectors =
+                SimpleItemItemModelBuilder.buildItemVectors(itemDao, userEventDao);
+        long[] itemIds = LongUtils.packedSet(itemVectors.keySet()).toLongArray();
+        int nitems = itemIds.length;
+        ImmutableSparseVector[] vectors = new ImmutableSparseVector[nitems];
+        for (int i = 0; i < nitems; i++) {
+            vectors[i] = itemVectors.get(itemIds[i]);
+        }
+
+        // hash every item with a nonzero vector into every table
+        boolean[] hashed = new boolean[nitems];
+        long[][] signatures = new long[tableCount][nitems];
+        double[] projections = new double[tableCount * hashBits];
+        for (int i = 0; i < nitems; i++) {
+            if (vectors[i].norm() > 0) {
+                hashed[i] = true;
+                sign(vectors[i], projections, signatures, i);
+            }
+        }
+        List<Long2ObjectMap<IntArrayList>> tables =
+                new ArrayList<Long2ObjectMap<IntArrayList>>(tableCount);
+        for (int t = 0; t < tableCount; t++) {
+            Long2ObjectMap<IntArrayList> buckets = new Long2ObjectOpenHashMap<IntArrayList>();
+            for (int i = 0; i < nitems; i++) {
+                if (!hashed[i]) {
+                    continue;
+                }
+                IntArrayList bucket = buckets.get(signatures[t][i]);
+                if (bucket == null) {
+                    bucket = new IntArrayList();
+                    buckets.put(signatures[t][i], bucket);
+                }
+                bucket.add(i);
+            }
+            tables.add(buckets);
+        }
+
+        // score each item's candidates exactly
+        int size = SimpleItemItemModelBuilder.selectorSize(modelSize, nitems);
+        TopNSelector[] selectors = new TopNSelector[nitems];
+        IntSet candidates = new IntOpenHashSet();
+        long ncompared = 0;
+        for (int i = 0; i < nitems; i++) {
+            selectors[i] = new TopNSelector(size);
+            if (!hashed[i]) {
+                continue;
+            }
+            candidates.clear();
+            for (int t = 0; t < tableCount; t++) {
+                candidates.addAll(tables.get(t).get(signatures[t][i]));
+            }
+            candidates.remove(i);
+            IntIterator iter = candidates.iterator();
+            while (iter.hasNext()) {
+                int j = iter.nextInt();
+                double similarity = cvs.similarity(vectors[i], vectors[j]);
+                if (similarity > 0.0) {
+                    selectors[i].put(itemIds[j], similarity);
+                }
+            }
+            ncompared += candidates.size();
+        }
+        logger.info("compared {} of {} item pairs", ncompared, (long) nitems * (nitems - 1));
+
+        SimpleItemItemModel model = SimpleItemItemModelBuilder.finishModel(itemIds, selectors, modelFile);
+        if (recallSample > 0) {
+            double recall = measureRecall(model, itemIds, vectors, size, recallSample);
+            logger.info("recall@{} on {} items: {}",
+                        new Object[]{size, Math.min(recallSample, nitems), recall});
+        }
+        return model;
+    }
+
+    /**
+     * Compute an item vector's signature in every hash table.
+     * @param vector The item vector.
+     * @param projections A buffer for the vector's projections onto all the tables' hyperplanes.
+     * @param signatures The signature arrays of each table.
+     * @param item The index at which to store the item's signatures.
+     */
+    private void sign(ImmutableSparseVector vector, double[] projections,
+                      long[][] signatures, int item) {
+        Arrays.fill(projections, 0.0);
+        for (VectorEntry e: vector.fast()) {
+            long user = e.getKey();
+            double value = e.getValue();
+            for (int p = 0; p < projections.length; p++) {
+                if (hyperplaneSign(user, p)) {
+                    projections[p] += value;
+                } else {
+                    projections[p] -= value;
+                }
+            }
+        }
+        for (int t = 0; t < tableCount; t++) {
+            long sig = 0;
+            for (int b = 0; b < hashBits; b++) {
+                if (projections[t * hashBits + b] >= 0) {
+                    sig |= 1L << b;
+                }
+            }
+            signatures[t][item] = sig;
+        }
+    }
+
+    /**
+     * Get a user's weight (as a sign) in a random hyperplane.
+     */
+    private static boolean hyperplaneSign(long user, int plane) {
+        // SplitMix64 finalizer over the user and hyperplane
+        long z = user * 0x9E3779B97F4A7C15L + plane * 0xBF58476D1CE4E5B9L + SEED;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return z < 0;
+    }
+
+    /**
+     * Measure the recall of an approximate model against exact neighbor search.
+     * @param model The approximate model.
+     * @param itemIds The item IDs, in increasing order.
+     * @param vectors The item vectors.
+     * @param k The number of neighbors per item.
+     * @param nsample The number of items to sample.
+     * @return The fraction of the sampled items' exact top-<i>k</i> neighbors that the model
+     *         found.
+     */
+    static double measureRecall(SimpleItemItemModel model, long[] itemIds,
+                                ImmutableSparseVector[] vectors, int k, int nsample) {
+        Random rng = new Random(SEED);
+        int nitems = itemIds.length;
+        int n = Math.min(nsample, nitems);
+        // choose a sample of item indexes (partial Fisher-Yates shuffle)
+        int[] order = new int[nitems];
+        for (int i = 0; i < nitems; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            int j = i + rng.nextInt(nitems - i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        TopNSelector exact = new TopNSelector(k);
+        long found = 0;
+        long total = 0;
+        for (int s = 0; s < n; s++) {
+            int i = order[s];
+            for (int j = 0; j < nitems; j++) {
+                if (j != i) {
+                    double similarity = cvs.similarity(vectors[i], vectors[j]);
+                    if (similarity > 0.0) {
+                        exact.put(itemIds[j], similarity);
+                    }
+                }
+            }
+            LongSet approx = new LongOpenHashSet();
+            int idx = model.itemIndex(itemIds[i]);
+            if (idx >= 0) {
+                for (int pos = model.neighborStart(idx); pos < model.neighborEnd(idx); pos++) {
+                    approx.add(model.neighborId(pos));
+                }
+            }
+            for (ScoredId nbr: exact.finishList()) {
+                total++;
+                if (approx.contains(nbr.getId())) {
+                    found++;
+                }
+            }
+        }
+        return total == 0 ? 1.0 : (double) found / total;
+    }
+}
@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of items on which the LSH item-item model builder measures its
+ * recall against exact neighbor search.  0 disables the check.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LSHRecallSample {
+}
@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of hash tables used by the LSH item-item model builder.  It
+ * must be positive.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(8)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LSHTableCount {
+}
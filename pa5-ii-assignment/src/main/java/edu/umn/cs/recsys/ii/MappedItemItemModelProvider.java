@@ -0,0 +1,37 @@
+package edu.umn.cs.recsys.ii;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Provide an item-item model by memory-mapping a model file written by
+ * {@link SimpleItemItemModelBuilder}, instead of building it.  To use it, bind it as the
+ * model provider:
+ * <pre>
+ * config.bind(SimpleItemItemModel.class)
+ *       .toProvider(MappedItemItemModelProvider.class);
+ * config.set(ModelFile.class)
+ *       .to(new File("data/item-item.model"));
+ * </pre>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MappedItemItemModelProvider implements Provider<SimpleItemItemModel> {
+    private final File modelFile;
+
+    @Inject
+    public MappedItemItemModelProvider(@ModelFile File file) {
+        modelFile = file;
+    }
+
+    @Override
+    public SimpleItemItemModel get() {
+        try {
+            return SimpleItemItemModel.open(modelFile);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot map model file " + modelFile, e);
+        }
+    }
+}
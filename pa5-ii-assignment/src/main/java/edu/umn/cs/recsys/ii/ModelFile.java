@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.io.File;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the item-item model file.  {@link SimpleItemItemModelBuilder} writes
+ * the model it builds to this file, and {@link MappedItemItemModelProvider} maps it.
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(File.class)
+public @interface ModelFile {
+}
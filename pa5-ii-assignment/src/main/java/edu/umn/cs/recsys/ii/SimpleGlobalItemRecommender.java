@@ -0,0 +1,118 @@
+package edu.umn.cs.recsys.ii;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.GlobalItemScorer;
+import org.grouplens.lenskit.basic.TopNGlobalItemRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Global item recommender that serves similar items from the item-item model.  A one-item
+ * basket is answered directly from the item's precomputed list of most similar items.  For
+ * small baskets, the candidates are narrowed to the items similar to some basket item, the
+ * only items that can score above zero, before scoring; larger baskets are scored as usual.
+ * <p>
+ * Only items with positive scores are recommended for one-item and small baskets.  As with
+ * the superclass, the basket items are excluded unless an exclude set is given.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class SimpleGlobalItemRecommender extends TopNGlobalItemRecommender {
+    /**
+     * The largest basket for which candidates are seeded from the similar items.
+     */
+    static final int MAX_SEED_BASKET = 16;
+
+    private final SimpleItemItemModel model;
+
+    @Inject
+    public SimpleGlobalItemRecommender(ItemDAO dao, GlobalItemScorer scorer,
+                                       SimpleItemItemModel m) {
+        super(dao, scorer);
+        model = m;
+    }
+
+    @Override
+    protected List<ScoredId> globalRecommend(LongSet items, int n,
+                                             @Nullable LongSet candidates,
+                                             @Nullable LongSet exclude) {
+        // without an exclude set the superclass excludes its defaults, so filter by those too
+        LongSet excluded = exclude != null ? exclude : getDefaultExcludes(items);
+        if (items.size() == 1) {
+            long item = items.iterator().nextLong();
+            // the model never lists an item as similar to itself
+            if (candidates == null && (excluded.isEmpty() || excluded.equals(items))) {
+                return model.getSimilarItems(item, n);
+            }
+            return filterSimilarItems(item, n, candidates, excluded);
+        } else if (items.size() <= MAX_SEED_BASKET) {
+            LongSet seeds = seedCandidates(items, candidates, excluded);
+            if (seeds.isEmpty()) {
+                return ScoredIds.newListBuilder().finish();
+            }
+            return super.globalRecommend(items, n, seeds, exclude);
+        } else {
+            return super.globalRecommend(items, n, candidates, exclude);
+        }
+    }
+
+    /**
+     * Read an item's most similar items, skipping those not allowed by the candidate and
+     * exclude sets.
+     */
+    private List<ScoredId> filterSimilarItems(long item, int n,
+                                              @Nullable LongSet candidates,
+                                              @Nullable LongSet exclude) {
+        ScoredIdListBuilder builder = ScoredIds.newListBuilder();
+        int idx = model.itemIndex(item);
+        if (idx >= 0) {
+            int end = model.reverseEnd(idx);
+            int count = 0;
+            for (int rpos = model.reverseStart(idx); rpos < end && (n < 0 || count < n); rpos++) {
+                long similar = model.itemId(model.reverseOwner(rpos));
+                if (allowed(similar, candidates, exclude)) {
+                    builder.add(similar, model.neighborScore(model.reversePosition(rpos)));
+                    count++;
+                }
+            }
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Collect the allowed items similar to at least one basket item.
+     */
+    private LongSet seedCandidates(LongSet items,
+                                   @Nullable LongSet candidates,
+                                   @Nullable LongSet exclude) {
+        LongSet seeds = new LongOpenHashSet();
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            int idx = model.itemIndex(iter.nextLong());
+            if (idx < 0) {
+                continue;
+            }
+            int end = model.reverseEnd(idx);
+            for (int rpos = model.reverseStart(idx); rpos < end; rpos++) {
+                long similar = model.itemId(model.reverseOwner(rpos));
+                if (allowed(similar, candidates, exclude)) {
+                    seeds.add(similar);
+                }
+            }
+        }
+        return seeds;
+    }
+
+    private static boolean allowed(long item, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        return (candidates == null || candidates.contains(item))
+                && (exclude == null || !exclude.contains(item));
+    }
+}
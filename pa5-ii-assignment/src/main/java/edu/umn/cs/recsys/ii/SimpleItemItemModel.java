@@ -1,23 +1,98 @@
 package edu.umn.cs.recsys.ii;
 
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.grouplens.lenskit.core.Shareable;
 import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
+ * Item-item model holding each item's truncated neighborhood.  The neighborhoods are stored
+ * compactly: the items are kept in a sorted array, and the neighbors of the item at index
+ * <i>i</i> occupy positions {@code neighborStart(i)} (inclusive) through {@code neighborEnd(i)}
+ * (exclusive) of shared neighbor ID and score arrays, sorted by decreasing score.
+ * <p>
+ * The model also provides a reverse index listing for each item the neighbor positions at which
+ * it appears, most similar first; this lets scorers push a rated item's contributions to the
+ * items that have it as a neighbor, and an item's reverse neighbors are its most similar items
+ * as seen from the rest of the catalog.  Built and mapped models have the index up front;
+ * others build it on first use.
+ * <p>
+ * The neighbor arrays are split into pages, and a position holds its page number in its high
+ * bits.  Built and mapped models have a single page.  Models maintained by
+ * {@link SimpleItemItemModelUpdater} use small pages, so an {@linkplain #withRows(int[], long[][],
+ * float[][]) updated model} appends its changed neighborhoods to new pages and shares all other
+ * pages with the model it was derived from.
+ * <p>
+ * A model can be {@linkplain #write(File) written} to a model file holding the item IDs,
+ * offsets, neighbor IDs and scores, followed by the reverse index offsets, owners and positions,
+ * as raw big-endian arrays after a short header, and {@linkplain #open(File) memory-mapped} back
+ * read-only.  A mapped model reads its neighbors and reverse index straight from the page cache,
+ * so processes on one host share a single copy.  Java serialization writes the neighbor arrays.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @Shareable
 @DefaultProvider(SimpleItemItemModelBuilder.class)
 public class SimpleItemItemModel implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
+    private static final Logger logger = LoggerFactory.getLogger(SimpleItemItemModel.class);
 
-    private final Map<Long,List<ScoredId>> neighborhoods;
+    /**
+     * Magic number at the start of every model file ("IIMD").
+     */
+    static final int MAGIC = 0x49494D44;
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The number of position bits addressing an entry within a page of an updatable model.
+     */
+    static final int PAGE_BITS = 22;
+    /**
+     * The most pages an updatable model may have before it is compacted.
+     */
+    static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+    /**
+     * The most neighbor entries a model can hold: a single-page model keeps them in one array.
+     */
+    static final int MAX_NEIGHBORS = Integer.MAX_VALUE - 8;
+    /**
+     * The position bits of a single-page model.
+     */
+    private static final int FLAT_BITS = 31;
+
+    private final LongBuffer itemIds;
+    private final IntBuffer starts;
+    private final IntBuffer ends;
+    private final int neighborCount;
+    private final int pageBits;
+    private final int pageMask;
+    private final LongBuffer[] idPages;
+    private final FloatBuffer[] scorePages;
+
+    private transient volatile ReverseIndex reverseIndex;
 
     /**
      * Create a new item-item model.
@@ -27,19 +102,975 @@ public class SimpleItemItemModel implements Serializable {
      *                 scores.
      */
     public SimpleItemItemModel(Map<Long,List<ScoredId>> nbrhoods) {
-        neighborhoods = nbrhoods;
+        this(flatten(nbrhoods));
+    }
+
+    private SimpleItemItemModel(FlatTable table) {
+        this(table.itemIds, table.offsets, table.neighborIds, table.neighborScores);
     }
 
     /**
-     * Get the neighbors of an item.
+     * Create a new item-item model from its compact representation.
+     * @param items The item IDs, in increasing order.
+     * @param offs The neighborhood offsets, one more than the number of items.
+     * @param nbrIds The neighbor IDs.
+     * @param nbrScores The neighbor similarities.
+     */
+    SimpleItemItemModel(long[] items, int[] offs, long[] nbrIds, float[] nbrScores) {
+        this(LongBuffer.wrap(items), IntBuffer.wrap(offs),
+             LongBuffer.wrap(nbrIds), FloatBuffer.wrap(nbrScores));
+    }
+
+    /**
+     * Create a single-page model.
+     */
+    private SimpleItemItemModel(LongBuffer items, IntBuffer offs,
+                                LongBuffer nbrIds, FloatBuffer nbrScores) {
+        this(items, range(offs, 0, items.limit()), range(offs, 1, items.limit()),
+             nbrIds.limit(), FLAT_BITS, new LongBuffer[]{nbrIds}, new FloatBuffer[]{nbrScores});
+    }
+
+    private SimpleItemItemModel(LongBuffer items, IntBuffer rowStarts, IntBuffer rowEnds,
+                                int count, int bits, LongBuffer[] ids, FloatBuffer[] scores) {
+        itemIds = items;
+        starts = rowStarts;
+        ends = rowEnds;
+        neighborCount = count;
+        pageBits = bits;
+        pageMask = (1 << bits) - 1;
+        idPages = ids;
+        scorePages = scores;
+    }
+
+    private static FlatTable flatten(Map<Long,List<ScoredId>> nbrhoods) {
+        long[] items = new long[nbrhoods.size()];
+        int i = 0;
+        long total = 0;
+        for (Map.Entry<Long,List<ScoredId>> e: nbrhoods.entrySet()) {
+            items[i++] = e.getKey();
+            total += e.getValue().size();
+        }
+        checkNeighborCount(total);
+        LongArrays.quickSort(items);
+
+        int[] offs = new int[items.length + 1];
+        long[] nbrIds = new long[(int) total];
+        float[] nbrScores = new float[(int) total];
+        int pos = 0;
+        for (i = 0; i < items.length; i++) {
+            offs[i] = pos;
+            for (ScoredId nbr: nbrhoods.get(items[i])) {
+                nbrIds[pos] = nbr.getId();
+                nbrScores[pos] = (float) nbr.getScore();
+                pos++;
+            }
+        }
+        offs[items.length] = pos;
+        return new FlatTable(items, offs, nbrIds, nbrScores);
+    }
+
+    /**
+     * Check that a model can hold a number of neighbor entries.
+     * @param count The number of neighbor entries.
+     * @throws IllegalArgumentException if there are more than {@link #MAX_NEIGHBORS}.
+     */
+    private static void checkNeighborCount(long count) {
+        if (count > MAX_NEIGHBORS) {
+            throw new IllegalArgumentException("model has " + count + " neighbors, more than the "
+                                               + MAX_NEIGHBORS + " it can hold");
+        }
+    }
+
+    /**
+     * Create a model from the neighbor selectors of each item.  The selectors are cleared.
+     * @param items The item IDs, in increasing order.
+     * @param selectors The neighbor selector for each item.
+     * @return The item-item model.
+     */
+    static SimpleItemItemModel fromSelectors(long[] items, TopNSelector[] selectors) {
+        int[] offs = new int[items.length + 1];
+        long total = 0;
+        for (int i = 0; i < items.length; i++) {
+            total += selectors[i].size();
+            checkNeighborCount(total);
+            offs[i + 1] = (int) total;
+        }
+        long[] nbrIds = new long[offs[items.length]];
+        float[] nbrScores = new float[offs[items.length]];
+        for (int i = 0; i < items.length; i++) {
+            selectors[i].finishInto(nbrIds, nbrScores, offs[i]);
+        }
+        SimpleItemItemModel model = new SimpleItemItemModel(items, offs, nbrIds, nbrScores);
+        model.getReverseIndex();
+        return model;
+    }
+
+    /**
+     * Create an updatable (paged) model from each item's neighbors.
+     * @param items The item IDs, in increasing order.
+     * @param rowIds The neighbor IDs of each item, most similar first.
+     * @param rowScores The neighbor similarities of each item.
+     * @return The item-item model, with its reverse index built.
+     */
+    static SimpleItemItemModel fromRows(long[] items, long[][] rowIds, float[][] rowScores) {
+        int n = items.length;
+        int[] rowStarts = new int[n];
+        int[] rowEnds = new int[n];
+        PageLayout layout = new PageLayout(PAGE_BITS, 0);
+        long count = 0;
+        for (int i = 0; i < n; i++) {
+            rowStarts[i] = layout.place(rowIds[i].length);
+            rowEnds[i] = rowStarts[i] + rowIds[i].length;
+            count += rowIds[i].length;
+        }
+        checkNeighborCount(count);
+        if (layout.getPageCount() > MAX_PAGES) {
+            throw new IllegalArgumentException("model needs " + layout.getPageCount()
+                                               + " pages, more than the " + MAX_PAGES + " allowed");
+        }
+        LongBuffer[] ids = new LongBuffer[layout.getPageCount()];
+        FloatBuffer[] scores = new FloatBuffer[ids.length];
+        for (int p = 0; p < ids.length; p++) {
+            ids[p] = LongBuffer.allocate(layout.getPageLength(p));
+            scores[p] = FloatBuffer.allocate(layout.getPageLength(p));
+        }
+        SimpleItemItemModel model =
+                new SimpleItemItemModel(LongBuffer.wrap(items), IntBuffer.wrap(rowStarts),
+                                        IntBuffer.wrap(rowEnds), (int) count, PAGE_BITS,
+                                        ids, scores);
+        for (int i = 0; i < n; i++) {
+            model.putRow(rowStarts[i], rowIds[i], rowScores[i]);
+        }
+        model.reverseIndex = ReverseIndex.build(model);
+        return model;
+    }
+
+    /**
+     * Derive a model with some items' neighborhoods replaced.  The new neighborhoods are
+     * appended to new pages, and the reverse lists of the items they drop or gain as neighbors
+     * are rebuilt; all other pages are shared with this model, which is not modified.  When the
+     * pages are exhausted or mostly hold replaced neighborhoods, the model is compacted instead.
+     * Only updatable models (built by {@link #fromRows(long[], long[][], float[][])}) can be
+     * derived from.
+     *
+     * @param rows The indexes of the items whose neighborhoods are replaced.
+     * @param rowIds The new neighbor IDs of each of those items, most similar first.
+     * @param rowScores The new neighbor similarities of each of those items.
+     * @return The new model.
+     */
+    SimpleItemItemModel withRows(int[] rows, long[][] rowIds, float[][] rowScores) {
+        if (pageBits != PAGE_BITS) {
+            throw new IllegalStateException("only paged models can be updated");
+        }
+        int n = getItemCount();
+        long count = neighborCount;
+        long added = 0;
+        for (int r = 0; r < rows.length; r++) {
+            count += rowIds[r].length - (neighborEnd(rows[r]) - neighborStart(rows[r]));
+            added += rowIds[r].length;
+        }
+        checkNeighborCount(count);
+        long capacity = 0;
+        for (LongBuffer page: idPages) {
+            capacity += page.limit();
+        }
+        PageLayout layout = new PageLayout(PAGE_BITS, idPages.length);
+        int[] positions = new int[rows.length];
+        for (int r = 0; r < rows.length; r++) {
+            positions[r] = layout.place(rowIds[r].length);
+        }
+        if (idPages.length + layout.getPageCount() > MAX_PAGES || capacity + added > 2L * count + (1 << PAGE_BITS)) {
+            return compactWithRows(rows, rowIds, rowScores);
+        }
+
+        int[] rowStarts = new int[n];
+        int[] rowEnds = new int[n];
+        starts.duplicate().get(rowStarts);
+        ends.duplicate().get(rowEnds);
+        LongBuffer[] ids = Arrays.copyOf(idPages, idPages.length + layout.getPageCount());
+        FloatBuffer[] scores = Arrays.copyOf(scorePages, ids.length);
+        for (int p = 0; p < layout.getPageCount(); p++) {
+            ids[idPages.length + p] = LongBuffer.allocate(layout.getPageLength(p));
+            scores[idPages.length + p] = FloatBuffer.allocate(layout.getPageLength(p));
+        }
+        for (int r = 0; r < rows.length; r++) {
+            rowStarts[rows[r]] = positions[r];
+            rowEnds[rows[r]] = positions[r] + rowIds[r].length;
+        }
+        SimpleItemItemModel model =
+                new SimpleItemItemModel(itemIds, IntBuffer.wrap(rowStarts), IntBuffer.wrap(rowEnds),
+                                        (int) count, PAGE_BITS, ids, scores);
+        for (int r = 0; r < rows.length; r++) {
+            model.putRow(positions[r], rowIds[r], rowScores[r]);
+        }
+        model.reverseIndex = getReverseIndex().withRows(this, model, rows);
+        return model;
+    }
+
+    /**
+     * Copy this model into fresh pages, with some neighborhoods replaced.
+     */
+    private SimpleItemItemModel compactWithRows(int[] rows, long[][] rowIds, float[][] rowScores) {
+        int n = getItemCount();
+        long[][] allIds = new long[n][];
+        float[][] allScores = new float[n][];
+        for (int r = 0; r < rows.length; r++) {
+            allIds[rows[r]] = rowIds[r];
+            allScores[rows[r]] = rowScores[r];
+        }
+        for (int i = 0; i < n; i++) {
+            if (allIds[i] == null) {
+                int start = neighborStart(i);
+                int len = neighborEnd(i) - start;
+                allIds[i] = new long[len];
+                allScores[i] = new float[len];
+                for (int k = 0; k < len; k++) {
+                    allIds[i][k] = neighborId(start + k);
+                    allScores[i][k] = (float) neighborScore(start + k);
+                }
+            }
+        }
+        logger.debug("compacting model of {} items", n);
+        long[] items = new long[n];
+        itemIds.duplicate().get(items);
+        return fromRows(items, allIds, allScores);
+    }
+
+    /**
+     * Write a neighborhood into this model's pages.  Only used while building a model.
+     */
+    private void putRow(int pos, long[] rowIds, float[] rowScores) {
+        LongBuffer ids = idPages[pos >>> pageBits];
+        FloatBuffer scores = scorePages[pos >>> pageBits];
+        int local = pos & pageMask;
+        for (int k = 0; k < rowIds.length; k++) {
+            ids.put(local + k, rowIds[k]);
+            scores.put(local + k, rowScores[k]);
+        }
+    }
+
+    /**
+     * Get the neighbors of an item.  This copies the neighbors into a new list, so scoring
+     * code reads them through {@link #neighborStart(int)} and the other position accessors
+     * instead; the list is for inspecting and testing models.
      * @return The neighbors of the item, sorted by decreasing score.
      */
     public List<ScoredId> getNeighbors(long item) {
-        List<ScoredId> nbrs = neighborhoods.get(item);
-        if (nbrs == null) {
+        int idx = itemIndex(item);
+        if (idx < 0 || neighborStart(idx) == neighborEnd(idx)) {
             return Collections.emptyList();
-        } else {
-            return nbrs;
+        }
+        ScoredIdListBuilder builder = ScoredIds.newListBuilder();
+        int end = neighborEnd(idx);
+        for (int pos = neighborStart(idx); pos < end; pos++) {
+            builder.add(neighborId(pos), neighborScore(pos));
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Get the items most similar to an item: the items whose neighborhoods contain it.
+     * @param item The item.
+     * @param n The number of items to return (negative for all of them).
+     * @return The most similar items, sorted by decreasing score.
+     */
+    public List<ScoredId> getSimilarItems(long item, int n) {
+        int idx = itemIndex(item);
+        if (idx < 0) {
+            return Collections.emptyList();
+        }
+        int start = reverseStart(idx);
+        int end = reverseEnd(idx);
+        if (n >= 0 && end - start > n) {
+            end = start + n;
+        }
+        ScoredIdListBuilder builder = ScoredIds.newListBuilder();
+        for (int rpos = start; rpos < end; rpos++) {
+            builder.add(itemIds.get(reverseOwner(rpos)), neighborScore(reversePosition(rpos)));
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Get the number of items in the model.
+     * @return The number of items.
+     */
+    public int getItemCount() {
+        return itemIds.limit();
+    }
+
+    /**
+     * Get the index of an item.
+     * @param item The item ID.
+     * @return The item's index, or a negative value if the item is not in the model.
+     */
+    public int itemIndex(long item) {
+        int low = 0;
+        int high = itemIds.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = itemIds.get(mid);
+            if (midId < item) {
+                low = mid + 1;
+            } else if (midId > item) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Get the item at an index.
+     * @param idx The item index.
+     * @return The item ID.
+     */
+    public long itemId(int idx) {
+        return itemIds.get(idx);
+    }
+
+    /**
+     * Get the position of an item's first neighbor.
+     * @param idx The item index.
+     * @return The position of the item's first (most similar) neighbor.
+     */
+    public int neighborStart(int idx) {
+        return starts.get(idx);
+    }
+
+    /**
+     * Get the end of an item's neighbors.
+     * @param idx The item index.
+     * @return The position after the item's last neighbor.
+     */
+    public int neighborEnd(int idx) {
+        return ends.get(idx);
+    }
+
+    /**
+     * Get the ID of the neighbor at a position.
+     * @param pos The neighbor position.
+     * @return The neighbor's item ID.
+     */
+    public long neighborId(int pos) {
+        return idPages[pos >>> pageBits].get(pos & pageMask);
+    }
+
+    /**
+     * Get the similarity of the neighbor at a position.
+     * @param pos The neighbor position.
+     * @return The neighbor's similarity.
+     */
+    public double neighborScore(int pos) {
+        return scorePages[pos >>> pageBits].get(pos & pageMask);
+    }
+
+    /**
+     * Get the number of neighbor entries in the model.
+     * @return The total size of all neighborhoods.
+     */
+    public int getNeighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * Get the start of an item's reverse neighbors.
+     * @param idx The item index.
+     * @return The first reverse position of the item.
+     * @see #reverseOwner(int)
+     */
+    public int reverseStart(int idx) {
+        return getReverseIndex().starts.get(idx);
+    }
+
+    /**
+     * Get the end of an item's reverse neighbors.
+     * @param idx The item index.
+     * @return The reverse position after the item's last reverse neighbor.
+     */
+    public int reverseEnd(int idx) {
+        return getReverseIndex().ends.get(idx);
+    }
+
+    /**
+     * Get the item that has a neighbor at a reverse position.
+     * @param rpos The reverse position.
+     * @return The index of the item whose neighborhood contains the entry.
+     */
+    public int reverseOwner(int rpos) {
+        return getReverseIndex().owner(rpos);
+    }
+
+    /**
+     * Get the neighbor position referenced by a reverse position.
+     * @param rpos The reverse position.
+     * @return The entry's position in its owner's neighborhood, suitable for
+     *         {@link #neighborScore(int)}.
+     */
+    public int reversePosition(int rpos) {
+        return getReverseIndex().position(rpos);
+    }
+
+    private ReverseIndex getReverseIndex() {
+        ReverseIndex index = reverseIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = reverseIndex;
+                if (index == null) {
+                    index = ReverseIndex.build(this);
+                    reverseIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static IntBuffer range(IntBuffer buffer, int start, int length) {
+        IntBuffer dup = buffer.duplicate();
+        dup.position(start);
+        dup.limit(start + length);
+        return dup.slice();
+    }
+
+    /**
+     * Assigns positions to consecutive runs of entries (neighborhoods or reverse lists) so that
+     * no run straddles a page.
+     */
+    private static class PageLayout {
+        private final int bits;
+        private final long pageSize;
+        private final int firstPage;
+        private final IntArrayList pageLengths = new IntArrayList();
+
+        /**
+         * @param bits The position bits addressing an entry within a page.
+         * @param first The number of the first page to fill.
+         */
+        PageLayout(int bits, int first) {
+            this.bits = bits;
+            pageSize = 1L << bits;
+            firstPage = first;
+        }
+
+        /**
+         * Place a run of entries.
+         * @param length The number of entries.
+         * @return The position of the run's first entry.
+         */
+        int place(int length) {
+            if (length > pageSize) {
+                throw new IllegalArgumentException("run of " + length + " entries does not fit in a page");
+            }
+            int last = pageLengths.size() - 1;
+            // a full page starts a new one even for an empty run, so every position is in a page
+            if (last < 0 || pageLengths.getInt(last) == pageSize
+                    || (long) pageLengths.getInt(last) + length > pageSize) {
+                pageLengths.add(0);
+                last++;
+            }
+            int local = pageLengths.getInt(last);
+            pageLengths.set(last, local + length);
+            return ((firstPage + last) << bits) | local;
+        }
+
+        int getPageCount() {
+            return pageLengths.size();
+        }
+
+        int getPageLength(int page) {
+            return pageLengths.getInt(page);
+        }
+    }
+
+    /**
+     * Inverted neighborhoods: for each item, the neighbor entries that refer to it, sorted by
+     * decreasing similarity.  The lists are paged like the neighborhoods.
+     */
+    private static class ReverseIndex {
+        final IntBuffer starts;
+        final IntBuffer ends;
+        final int bits;
+        final int mask;
+        final IntBuffer[] owners;
+        final IntBuffer[] positions;
+
+        ReverseIndex(IntBuffer starts, IntBuffer ends, int bits,
+                     IntBuffer[] owners, IntBuffer[] positions) {
+            this.starts = starts;
+            this.ends = ends;
+            this.bits = bits;
+            this.mask = (1 << bits) - 1;
+            this.owners = owners;
+            this.positions = positions;
+        }
+
+        int owner(int rpos) {
+            return owners[rpos >>> bits].get(rpos & mask);
+        }
+
+        int position(int rpos) {
+            return positions[rpos >>> bits].get(rpos & mask);
+        }
+
+        /**
+         * Build the reverse index of a model, paged like its neighborhoods.
+         */
+        static ReverseIndex build(SimpleItemItemModel model) {
+            int n = model.getItemCount();
+            int[] counts = new int[n];
+            for (int owner = 0; owner < n; owner++) {
+                int end = model.neighborEnd(owner);
+                for (int pos = model.neighborStart(owner); pos < end; pos++) {
+                    int target = model.itemIndex(model.neighborId(pos));
+                    if (target >= 0) {
+                        counts[target]++;
+                    }
+                }
+            }
+            int[][] listOwners = new int[n][];
+            int[][] listPositions = new int[n][];
+            for (int t = 0; t < n; t++) {
+                listOwners[t] = new int[counts[t]];
+                listPositions[t] = new int[counts[t]];
+                counts[t] = 0;
+            }
+            for (int owner = 0; owner < n; owner++) {
+                int end = model.neighborEnd(owner);
+                for (int pos = model.neighborStart(owner); pos < end; pos++) {
+                    int target = model.itemIndex(model.neighborId(pos));
+                    if (target >= 0) {
+                        listOwners[target][counts[target]] = owner;
+                        listPositions[target][counts[target]] = pos;
+                        counts[target]++;
+                    }
+                }
+            }
+            int[] rowStarts = new int[n];
+            int[] rowEnds = new int[n];
+            int[] all = new int[n];
+            for (int t = 0; t < n; t++) {
+                all[t] = t;
+            }
+            PagedLists lists = new PagedLists(model, model.pageBits, 0, all, listOwners, listPositions,
+                                              rowStarts, rowEnds);
+            return new ReverseIndex(IntBuffer.wrap(rowStarts), IntBuffer.wrap(rowEnds), model.pageBits,
+                                    lists.owners, lists.positions);
+        }
+
+        /**
+         * Derive the reverse index of a model with some neighborhoods replaced.
+         * @param old The model this index belongs to.
+         * @param model The model with the replaced neighborhoods.
+         * @param rows The indexes of the replaced neighborhoods.
+         * @return The reverse index of {@code model}, sharing unchanged pages with this one.
+         */
+        ReverseIndex withRows(SimpleItemItemModel old, SimpleItemItemModel model, int[] rows) {
+            IntOpenHashSet changed = new IntOpenHashSet(rows);
+            // the targets whose lists change: old and new neighbors of the changed rows
+            IntOpenHashSet targetSet = new IntOpenHashSet();
+            Int2ObjectOpenHashMap<IntArrayList> additions = new Int2ObjectOpenHashMap<IntArrayList>();
+            for (int row: rows) {
+                int end = old.neighborEnd(row);
+                for (int pos = old.neighborStart(row); pos < end; pos++) {
+                    int target = old.itemIndex(old.neighborId(pos));
+                    if (target >= 0) {
+                        targetSet.add(target);
+                    }
+                }
+                end = model.neighborEnd(row);
+                for (int pos = model.neighborStart(row); pos < end; pos++) {
+                    int target = model.itemIndex(model.neighborId(pos));
+                    if (target >= 0) {
+                        targetSet.add(target);
+                        IntArrayList list = additions.get(target);
+                        if (list == null) {
+                            list = new IntArrayList();
+                            additions.put(target, list);
+                        }
+                        list.add(row);
+                        list.add(pos);
+                    }
+                }
+            }
+            int[] targets = targetSet.toIntArray();
+            Arrays.sort(targets);
+
+            int[][] listOwners = new int[targets.length][];
+            int[][] listPositions = new int[targets.length][];
+            long capacity = 0;
+            for (IntBuffer page: owners) {
+                capacity += page.limit();
+            }
+            long added = 0;
+            for (int t = 0; t < targets.length; t++) {
+                int target = targets[t];
+                IntArrayList owned = new IntArrayList();
+                IntArrayList positioned = new IntArrayList();
+                int end = ends.get(target);
+                for (int rpos = starts.get(target); rpos < end; rpos++) {
+                    if (!changed.contains(owner(rpos))) {
+                        owned.add(owner(rpos));
+                        positioned.add(position(rpos));
+                    }
+                }
+                IntArrayList extra = additions.get(target);
+                if (extra != null) {
+                    for (int e = 0; e < extra.size(); e += 2) {
+                        owned.add(extra.getInt(e));
+                        positioned.add(extra.getInt(e + 1));
+                    }
+                }
+                listOwners[t] = owned.toIntArray();
+                listPositions[t] = positioned.toIntArray();
+                added += listOwners[t].length;
+            }
+
+            int n = model.getItemCount();
+            int[] rowStarts = new int[n];
+            int[] rowEnds = new int[n];
+            starts.duplicate().get(rowStarts);
+            ends.duplicate().get(rowEnds);
+            PagedLists lists = new PagedLists(model, bits, owners.length, targets, listOwners, listPositions,
+                                              rowStarts, rowEnds);
+            if (owners.length + lists.owners.length > MAX_PAGES
+                    || capacity + added > 2L * model.getNeighborCount() + (1 << bits)) {
+                return build(model);
+            }
+            IntBuffer[] newOwners = Arrays.copyOf(owners, owners.length + lists.owners.length);
+            IntBuffer[] newPositions = Arrays.copyOf(positions, newOwners.length);
+            System.arraycopy(lists.owners, 0, newOwners, owners.length, lists.owners.length);
+            System.arraycopy(lists.positions, 0, newPositions, owners.length, lists.positions.length);
+            return new ReverseIndex(IntBuffer.wrap(rowStarts), IntBuffer.wrap(rowEnds), bits,
+                                    newOwners, newPositions);
+        }
+    }
+
+    /**
+     * Reverse lists sorted and laid out into new pages.
+     */
+    private static class PagedLists {
+        final IntBuffer[] owners;
+        final IntBuffer[] positions;
+
+        /**
+         * Sort reverse lists by decreasing similarity (ties by owner) and lay them out.
+         * @param model The model whose neighbor scores order the lists.
+         * @param bits The position bits within a page.
+         * @param firstPage The number of the first new page.
+         * @param targets The items whose lists are laid out.
+         * @param listOwners The owners of each list's entries.
+         * @param listPositions The neighbor positions of each list's entries.
+         * @param rowStarts The list starts, updated for the targets.
+         * @param rowEnds The list ends, updated for the targets.
+         */
+        PagedLists(final SimpleItemItemModel model, int bits, int firstPage, int[] targets,
+                   int[][] listOwners, int[][] listPositions, int[] rowStarts, int[] rowEnds) {
+            PageLayout layout = new PageLayout(bits, firstPage);
+            int[] placed = new int[targets.length];
+            for (int t = 0; t < targets.length; t++) {
+                placed[t] = layout.place(listOwners[t].length);
+                rowStarts[targets[t]] = placed[t];
+                rowEnds[targets[t]] = placed[t] + listOwners[t].length;
+            }
+            owners = new IntBuffer[layout.getPageCount()];
+            positions = new IntBuffer[owners.length];
+            for (int p = 0; p < owners.length; p++) {
+                owners[p] = IntBuffer.allocate(layout.getPageLength(p));
+                positions[p] = IntBuffer.allocate(layout.getPageLength(p));
+            }
+            int mask = (1 << bits) - 1;
+            for (int t = 0; t < targets.length; t++) {
+                final int[] os = listOwners[t];
+                final int[] ps = listPositions[t];
+                it.unimi.dsi.fastutil.Arrays.quickSort(0, os.length, new AbstractIntComparator() {
+                    @Override
+                    public int compare(int r1, int r2) {
+                        int cmp = Double.compare(model.neighborScore(ps[r2]), model.neighborScore(ps[r1]));
+                        return cmp != 0 ? cmp : (os[r1] < os[r2] ? -1 : (os[r1] > os[r2] ? 1 : 0));
+                    }
+                }, new Swapper() {
+                    @Override
+                    public void swap(int r1, int r2) {
+                        int owner = os[r1];
+                        os[r1] = os[r2];
+                        os[r2] = owner;
+                        int pos = ps[r1];
+                        ps[r1] = ps[r2];
+                        ps[r2] = pos;
+                    }
+                });
+                IntBuffer ownerPage = owners[(placed[t] >>> bits) - firstPage];
+                IntBuffer positionPage = positions[(placed[t] >>> bits) - firstPage];
+                int local = placed[t] & mask;
+                for (int e = 0; e < os.length; e++) {
+                    ownerPage.put(local + e, os[e]);
+                    positionPage.put(local + e, ps[e]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A model's neighborhoods as flat arrays, as stored in model files.
+     */
+    private static class FlatTable {
+        final long[] itemIds;
+        final int[] offsets;
+        final long[] neighborIds;
+        final float[] neighborScores;
+
+        FlatTable(long[] items, int[] offs, long[] nbrIds, float[] nbrScores) {
+            itemIds = items;
+            offsets = offs;
+            neighborIds = nbrIds;
+            neighborScores = nbrScores;
+        }
+
+        /**
+         * Copy a model's neighborhoods into flat arrays, dropping any unused page space.
+         */
+        static FlatTable of(SimpleItemItemModel model) {
+            int n = model.getItemCount();
+            int m = model.getNeighborCount();
+            long[] items = new long[n];
+            int[] offs = new int[n + 1];
+            long[] nbrIds = new long[m];
+            float[] nbrScores = new float[m];
+            int out = 0;
+            for (int i = 0; i < n; i++) {
+                items[i] = model.itemId(i);
+                offs[i] = out;
+                int end = model.neighborEnd(i);
+                for (int pos = model.neighborStart(i); pos < end; pos++) {
+                    nbrIds[out] = model.neighborId(pos);
+                    nbrScores[out] = (float) model.neighborScore(pos);
+                    out++;
+                }
+            }
+            offs[n] = out;
+            return new FlatTable(items, offs, nbrIds, nbrScores);
+        }
+    }
+
+    /**
+     * Write the model to a model file.  The model is written to a temporary file in the same
+     * directory, which is then renamed over the model file, so processes that have the old
+     * file mapped keep reading it intact and no process ever maps a partly written file.  (On
+     * platforms that cannot rename over an existing file, the old file is deleted first.)
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     * @see #open(File)
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+        boolean done = false;
+        try {
+            writeTable(tmp);
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("cannot rename " + tmp + " to " + file);
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Write the model's arrays to a file.
+     */
+    private void writeTable(File file) throws IOException {
+        FlatTable table = FlatTable.of(this);
+        int n = table.itemIds.length;
+        int m = table.neighborIds.length;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(m);
+            for (long item: table.itemIds) {
+                out.writeLong(item);
+            }
+            for (int off: table.offsets) {
+                out.writeInt(off);
+            }
+            if ((n + 1) % 2 != 0) {
+                // pad so the neighbor IDs are 8-byte aligned
+                out.writeInt(0);
+            }
+            for (long nbr: table.neighborIds) {
+                out.writeLong(nbr);
+            }
+            for (float score: table.neighborScores) {
+                out.writeFloat(score);
+            }
+
+            // the reverse index, with positions translated to the compact layout
+            ReverseIndex index = getReverseIndex();
+            int rpos = 0;
+            for (int i = 0; i < n; i++) {
+                out.writeInt(rpos);
+                rpos += index.ends.get(i) - index.starts.get(i);
+            }
+            out.writeInt(rpos);
+            for (int i = 0; i < n; i++) {
+                int end = index.ends.get(i);
+                for (int r = index.starts.get(i); r < end; r++) {
+                    out.writeInt(index.owner(r));
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                int end = index.ends.get(i);
+                for (int r = index.starts.get(i); r < end; r++) {
+                    int owner = index.owner(r);
+                    out.writeInt(table.offsets[owner] + index.position(r) - neighborStart(owner));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        logger.info("wrote {} neighbors of {} items to {}", new Object[]{m, n, file});
+    }
+
+    /**
+     * Memory-map a model file.  The neighborhoods and the reverse index are both read from
+     * the mapped file.  The item order and all offsets and reverse index entries are checked
+     * when the file is opened, so a corrupt file cannot send reads out of bounds later.
+     * @param file The model file.
+     * @return The model, reading its neighbors from the mapped file.
+     * @throws IOException if there is an error mapping the file or it is not a valid model file.
+     */
+    public static SimpleItemItemModel open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException(file + ": not an item-item model file");
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file + ": model file too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + ": not an item-item model file");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(file + ": unsupported model file version " + buffer.getInt(4));
+            }
+            int n = buffer.getInt(8);
+            int m = buffer.getInt(12);
+            long itemStart = HEADER_SIZE;
+            long offsetStart = itemStart + 8L * n;
+            long idStart = offsetStart + 4L * (n + 1 + (n + 1) % 2);
+            long scoreStart = idStart + 8L * m;
+            long reverseStart = scoreStart + 4L * m;
+            long ownerStart = reverseStart + 4L * (n + 1);
+            if (n < 0 || m < 0 || ownerStart > length) {
+                throw new IOException(file + ": truncated model file");
+            }
+            int r = buffer.getInt((int) ownerStart - 4);
+            long positionStart = ownerStart + 4L * r;
+            if (r < 0 || positionStart + 4L * r != length) {
+                throw new IOException(file + ": truncated model file");
+            }
+
+            LongBuffer items = region(buffer, itemStart, 8 * n).asLongBuffer();
+            for (int i = 1; i < n; i++) {
+                if (items.get(i - 1) >= items.get(i)) {
+                    throw new IOException(file + ": item IDs out of order at index " + i);
+                }
+            }
+            IntBuffer offsets = region(buffer, offsetStart, 4 * (n + 1)).asIntBuffer();
+            checkOffsets(file, "neighbor", offsets, m);
+            IntBuffer reverseOffsets = region(buffer, reverseStart, 4 * (n + 1)).asIntBuffer();
+            checkOffsets(file, "reverse", reverseOffsets, r);
+            IntBuffer owners = region(buffer, ownerStart, 4 * r).asIntBuffer();
+            IntBuffer positions = region(buffer, positionStart, 4 * r).asIntBuffer();
+            for (int i = 0; i < r; i++) {
+                int owner = owners.get(i);
+                int pos = positions.get(i);
+                if (owner < 0 || owner >= n
+                        || pos < offsets.get(owner) || pos >= offsets.get(owner + 1)) {
+                    throw new IOException(file + ": reverse entry " + i + " out of bounds");
+                }
+            }
+
+            SimpleItemItemModel model =
+                    new SimpleItemItemModel(items, offsets,
+                                            region(buffer, idStart, 8 * m).asLongBuffer(),
+                                            region(buffer, scoreStart, 4 * m).asFloatBuffer());
+            model.reverseIndex =
+                    new ReverseIndex(range(reverseOffsets, 0, n), range(reverseOffsets, 1, n), FLAT_BITS,
+                                     new IntBuffer[]{owners}, new IntBuffer[]{positions});
+            logger.info("mapped {} neighbors of {} items from {}", new Object[]{m, n, file});
+            return model;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check that a model file's offsets start at 0, never decrease, and end at the number of
+     * entries they index.
+     * @throws IOException if the offsets are invalid.
+     */
+    private static void checkOffsets(File file, String what, IntBuffer offsets, int total)
+            throws IOException {
+        int last = offsets.limit() - 1;
+        if (offsets.get(0) != 0 || offsets.get(last) != total) {
+            throw new IOException(file + ": " + what + " offsets do not span the " + total
+                                  + " entries");
+        }
+        for (int i = 0; i < last; i++) {
+            if (offsets.get(i) > offsets.get(i + 1)) {
+                throw new IOException(file + ": " + what + " offsets decrease at index " + i);
+            }
+        }
+    }
+
+    private static ByteBuffer region(ByteBuffer buffer, long start, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position((int) start);
+        dup.limit((int) start + length);
+        return dup.slice();
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("item-item models are deserialized from their serialized form");
+    }
+
+    /**
+     * Serialized form of a model, holding the neighbor table as plain arrays.
+     */
+    private static class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] itemIds;
+        private final int[] offsets;
+        private final long[] neighborIds;
+        private final float[] neighborScores;
+
+        SerializedForm(SimpleItemItemModel model) {
+            FlatTable table = FlatTable.of(model);
+            itemIds = table.itemIds;
+            offsets = table.offsets;
+            neighborIds = table.neighborIds;
+            neighborScores = table.neighborScores;
+        }
+
+        private Object readResolve() {
+            return new SimpleItemItemModel(itemIds, offsets, neighborIds, neighborScores);
         }
     }
 }
@@ -1,6 +1,6 @@
 package edu.umn.cs.recsys.ii;
 
-import it.unimi.dsi.fastutil.longs.LongSet;
+import edu.umn.cs.recsys.TopNSelector;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
 
 import org.grouplens.lenskit.collections.LongUtils;
@@ -11,24 +11,30 @@ import org.grouplens.lenskit.data.dao.UserEventDAO;
 import org.grouplens.lenskit.data.event.Event;
 import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
 import org.grouplens.lenskit.data.history.UserHistory;
-import org.grouplens.lenskit.scored.PackedScoredIdList;
-import org.grouplens.lenskit.scored.ScoredId;
-import org.grouplens.lenskit.scored.ScoredIdListBuilder;
-import org.grouplens.lenskit.scored.ScoredIds;
+import org.grouplens.lenskit.knn.item.ModelSize;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
-import org.grouplens.lenskit.vectors.VectorEntry.State;
 import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
@@ -36,14 +42,31 @@ import java.util.Map;
 public class SimpleItemItemModelBuilder implements Provider<SimpleItemItemModel> {
     private final ItemDAO itemDao;
     private final UserEventDAO userEventDao;
+    private final int modelSize;
+    private final int threadCount;
+    private final File modelFile;
     private static final Logger logger = LoggerFactory.getLogger(SimpleItemItemModelBuilder.class);
     private static final CosineVectorSimilarity cvs = new CosineVectorSimilarity();
 
+    /**
+     * Construct the model builder.
+     * @param idao The item DAO.
+     * @param uedao The user event DAO.
+     * @param nnbrs The number of neighbors to keep for each item (0 to keep all of them).
+     * @param nthreads The number of threads to compute similarities with.
+     * @param file The file to write the model to, or {@code null} to not write it.
+     */
     @Inject
     public SimpleItemItemModelBuilder(@Transient ItemDAO idao,
-                                      @Transient UserEventDAO uedao) {
+                                      @Transient UserEventDAO uedao,
+                                      @ModelSize int nnbrs,
+                                      @ThreadCount int nthreads,
+                                      @Nullable @ModelFile File file) {
         itemDao = idao;
         userEventDao = uedao;
+        modelSize = nnbrs;
+        threadCount = nthreads;
+        modelFile = file;
     }
 
     @Override
@@ -54,61 +77,212 @@ public class SimpleItemItemModelBuilder implements Provider<SimpleItemItemModel>
 
         // Get all items - you might find this useful
         LongSortedSet items = LongUtils.packedSet(itemVectors.keySet());
-        // Map items to vectors of item similarities
-        Map<Long, List<ScoredId>> itemSimilarities = new HashMap<Long, List<ScoredId>>();
-
-        for (long item : items) {
-            ImmutableSparseVector itemvector = itemVectors.get(item);
-            ScoredIdListBuilder silbuilder = ScoredIds.newListBuilder();
-            for (long jtem : items) {
-                if (item == jtem) {
-                    continue;
-                }
-                ImmutableSparseVector jtemvector = itemVectors.get(jtem);
-                double similarity = cvs.similarity(itemvector, jtemvector);
-                if (similarity <= 0.0) {
-                    continue;
-                }
-                silbuilder.add(jtem, similarity);
+        long[] itemIds = items.toLongArray();
+        ImmutableSparseVector[] vectors = new ImmutableSparseVector[itemIds.length];
+        for (int i = 0; i < itemIds.length; i++) {
+            vectors[i] = itemVectors.get(itemIds[i]);
+        }
+
+        // Keep the most similar neighbors of each item
+        TopNSelector[] selectors = computeSimilarities(itemIds, vectors);
+
+        return finishModel(itemIds, selectors, modelFile);
+    }
+
+    /**
+     * Get the number of neighbors to select for each item.
+     * @param modelSize The configured model size (0 to keep all neighbors).
+     * @param nitems The number of items.
+     * @return The selector size.
+     */
+    static int selectorSize(int modelSize, int nitems) {
+        return modelSize > 0 ? Math.min(modelSize, nitems) : nitems;
+    }
+
+    /**
+     * Pack each item's neighbors, most similar first, into a model, and write it to the model
+     * file if there is one.  All the item-item model builders finish through this method.
+     * @param itemIds The item IDs, in increasing order.
+     * @param selectors The selectors holding each item's neighbors.
+     * @param file The file to write the model to, or {@code null}.
+     * @return The model.
+     */
+    static SimpleItemItemModel finishModel(long[] itemIds, TopNSelector[] selectors,
+                                           @Nullable File file) {
+        SimpleItemItemModel model = SimpleItemItemModel.fromSelectors(itemIds, selectors);
+        if (file != null) {
+            try {
+                model.write(file);
+            } catch (IOException e) {
+                throw new RuntimeException("cannot write model file " + file, e);
             }
-            PackedScoredIdList similarities = silbuilder.sort(ScoredIds.scoreOrder().reverse()).finish();
-            itemSimilarities.put(item, similarities);
         }
+        return model;
+    }
+
+    /**
+     * Compute the neighbors of every item.  Similarity is symmetric, so each pair is computed
+     * once: the first pass splits the rows of the upper triangle among the tasks, and each task
+     * offers a pair's similarity to both items' selectors in its own array of selectors.  The
+     * second pass merges the tasks' selectors for each item.  No selector is ever shared
+     * between tasks, so neither pass locks; since the selectors break ties by ID, the result
+     * does not depend on the thread schedule.  The tasks' selectors grow on demand, but each
+     * task can hold up to the model size of neighbors for every item until they are merged.
+     * @return The selectors holding each item's positive-similarity neighbors.
+     */
+    private TopNSelector[] computeSimilarities(final long[] itemIds,
+                                               final ImmutableSparseVector[] vectors) {
+        final int nitems = itemIds.length;
+        final int size = selectorSize(modelSize, nitems);
+        final int nthreads =
+                threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+        logger.info("computing similarities of {} items with {} threads", nitems, nthreads);
+        final TopNSelector[][] partials = new TopNSelector[nthreads][];
+        final TopNSelector[] selectors = new TopNSelector[nitems];
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>(nthreads);
+            for (int t = 0; t < nthreads; t++) {
+                final int task = t;
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        TopNSelector[] local = new TopNSelector[nitems];
+                        // rows get shorter down the triangle, so deal them out in turn
+                        for (int i = task; i < nitems; i += nthreads) {
+                            for (int j = i + 1; j < nitems; j++) {
+                                double similarity = cvs.similarity(vectors[i], vectors[j]);
+                                if (similarity > 0.0) {
+                                    selector(local, i, size).put(itemIds[j], similarity);
+                                    selector(local, j, size).put(itemIds[i], similarity);
+                                }
+                            }
+                        }
+                        partials[task] = local;
+                    }
+                }));
+            }
+            await(tasks);
 
-        // TODO Compute the similarities between each pair of items
-        // It will need to be in a map of longs to lists of Scored IDs to store in the model
-        return new SimpleItemItemModel(itemSimilarities);
+            tasks.clear();
+            for (int t = 0; t < nthreads; t++) {
+                final int from = (int) ((long) nitems * t / nthreads);
+                final int to = (int) ((long) nitems * (t + 1) / nthreads);
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            TopNSelector selector = new TopNSelector(size);
+                            for (TopNSelector[] local: partials) {
+                                if (local[i] != null) {
+                                    selector.putAll(local[i]);
+                                    local[i] = null;
+                                }
+                            }
+                            selectors[i] = selector;
+                        }
+                    }
+                }));
+            }
+            await(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        return selectors;
+    }
+
+    /**
+     * Get an item's selector from an array of selectors, creating it if needed.
+     */
+    private static TopNSelector selector(TopNSelector[] selectors, int i, int size) {
+        TopNSelector selector = selectors[i];
+        if (selector == null) {
+            selector = new TopNSelector(size);
+            selectors[i] = selector;
+        }
+        return selector;
+    }
+
+    /**
+     * Wait for similarity tasks to finish.  Waiting on the futures also publishes the tasks'
+     * results to this thread.
+     */
+    private static void await(List<Future<?>> tasks) {
+        try {
+            for (Future<?> task: tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted computing item similarities", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error computing item similarities", e.getCause());
+        }
     }
 
     /**
      * Load the data into memory, indexed by item.
      * @return A map from item IDs to item rating vectors. Each vector contains users' ratings for
      * the item, keyed by user ID.
+     * @see #buildItemVectors(ItemDAO, UserEventDAO)
      */
     public Map<Long,ImmutableSparseVector> getItemVectors() {
+        return buildItemVectors(itemDao, userEventDao);
+    }
+
+    /**
+     * Load the mean-centered item rating vectors that the item-item model builders compute
+     * similarities over.  The ratings are streamed twice: the first pass counts each item's
+     * ratings, and the second fills exactly-sized primitive arrays with the users'
+     * mean-centered ratings.
+     * @param itemDao The item DAO.
+     * @param userEventDao The user event DAO.
+     * @return A map from item IDs to item rating vectors. Each vector contains users' ratings for
+     * the item, keyed by user ID.
+     */
+    static Map<Long,ImmutableSparseVector> buildItemVectors(ItemDAO itemDao, UserEventDAO userEventDao) {
         // set up storage for building each item's rating vector
-        LongSet items = itemDao.getItemIds();
-        // map items to maps from users to ratings
-        Map<Long,Map<Long,Double>> itemData = new HashMap<Long, Map<Long, Double>>();
-        for (long item: items) {
-            itemData.put(item, new HashMap<Long, Double>());
-        }
-        // itemData should now contain a map to accumulate the ratings of each item
+        long[] items = LongUtils.packedSet(itemDao.getItemIds()).toLongArray();
 
-        // stream over all user events
+        // first pass: count the ratings of each item
+        int[] counts = new int[items.length];
         Cursor<UserHistory<Event>> stream = userEventDao.streamEventsByUser();
+        try {
+            for (UserHistory<Event> evt: stream) {
+                SparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(evt);
+                for (VectorEntry ve: vector.fast()) {
+                    int idx = Arrays.binarySearch(items, ve.getKey());
+                    if (idx >= 0) {
+                        counts[idx]++;
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        long[][] users = new long[items.length][];
+        double[][] ratings = new double[items.length][];
+        for (int i = 0; i < items.length; i++) {
+            users[i] = new long[counts[i]];
+            ratings[i] = new double[counts[i]];
+        }
+
+        // second pass: store each user's normalized ratings in the item arrays
+        int[] fill = new int[items.length];
+        stream = userEventDao.streamEventsByUser();
         try {
             for (UserHistory<Event> evt: stream) {
                 long user = evt.getUserId();
-                MutableSparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(evt).mutableCopy();
-                // vector is now the user's rating vector
-                // TODO Normalize this vector and store the ratings in the item data
+                SparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(evt);
                 double usermean = vector.mean();
-                for (VectorEntry ve : vector.fast(State.SET)) {
-                    long item = ve.getKey();
-                    double rating = ve.getValue();
-                    double normrating = rating - usermean;
-                    itemData.get(item).put(user, normrating);
+                for (VectorEntry ve: vector.fast()) {
+                    int idx = Arrays.binarySearch(items, ve.getKey());
+                    if (idx >= 0 && fill[idx] < counts[idx]) {
+                        users[idx][fill[idx]] = user;
+                        ratings[idx][fill[idx]] = ve.getValue() - usermean;
+                        fill[idx]++;
+                    }
                 }
             }
         } finally {
@@ -117,9 +291,19 @@ public class SimpleItemItemModelBuilder implements Provider<SimpleItemItemModel>
 
         // This loop converts our temporary item storage to a map of item vectors
         Map<Long,ImmutableSparseVector> itemVectors = new HashMap<Long, ImmutableSparseVector>();
-        for (Map.Entry<Long,Map<Long,Double>> entry: itemData.entrySet()) {
-            MutableSparseVector vec = MutableSparseVector.create(entry.getValue());
-            itemVectors.put(entry.getKey(), vec.immutable());
+        for (int i = 0; i < items.length; i++) {
+            if (fill[i] < counts[i]) {
+                // the stream changed between passes; drop the unfilled slots
+                users[i] = Arrays.copyOf(users[i], fill[i]);
+                ratings[i] = Arrays.copyOf(ratings[i], fill[i]);
+            }
+            MutableSparseVector vec = MutableSparseVector.create(users[i]);
+            for (int j = 0; j < users[i].length; j++) {
+                vec.set(users[i][j], ratings[i][j]);
+            }
+            itemVectors.put(items[i], vec.freeze());
+            users[i] = null;
+            ratings[i] = null;
         }
         return itemVectors;
     }
@@ -0,0 +1,307 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.data.pref.Preference;
+import org.grouplens.lenskit.knn.item.ModelSize;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maintains an item-item model under a stream of new ratings.  The updater keeps the ratings
+ * of each user and the sufficient statistics of the similarities: for every pair of co-rated
+ * items, the dot product of their mean-centered rating vectors, and for every item, its
+ * squared norm.  When a batch of ratings arrives, each affected user's old contributions are
+ * subtracted and new ones added (a user's mean shifts with their ratings, so all of their
+ * items are affected), and only the neighbor lists that can have changed are recomputed into
+ * a new {@link SimpleItemItemModel} snapshot.  The snapshot shares the storage of all other
+ * lists with the previous one, so an update costs time and memory in proportion to the lists
+ * it changes (plus an array of offsets per item), not to the size of the model.  Ratings of
+ * items new to the updater recompute every list.
+ * <p>
+ * The similarities are the same cosine similarities the model builders compute, up to the
+ * rounding error accumulated by repeated updates; an occasional full rebuild clears it.
+ * Snapshots are immutable, so they can be handed to scorers while updates continue.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class SimpleItemItemModelUpdater {
+    private static final Logger logger = LoggerFactory.getLogger(SimpleItemItemModelUpdater.class);
+    private static final Comparator<Rating> TIMESTAMP_ORDER = new Comparator<Rating>() {
+        @Override
+        public int compare(Rating r1, Rating r2) {
+            long t1 = r1.getTimestamp();
+            long t2 = r2.getTimestamp();
+            return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+        }
+    };
+
+    private final int modelSize;
+    private final Long2ObjectMap<Long2DoubleMap> userRatings;
+    private final Long2IntOpenHashMap itemIndexes;
+    private final LongArrayList itemIds;
+    private final List<ItemStats> itemStats;
+    private SimpleItemItemModel model;
+
+    /**
+     * Construct an updater, loading the current ratings and building the initial model.
+     * @param idao The item DAO.
+     * @param uedao The user event DAO.
+     * @param nnbrs The number of neighbors to keep for each item (0 to keep all of them).
+     */
+    @Inject
+    public SimpleItemItemModelUpdater(@Transient ItemDAO idao,
+                                      @Transient UserEventDAO uedao,
+                                      @ModelSize int nnbrs) {
+        modelSize = nnbrs;
+        userRatings = new Long2ObjectOpenHashMap<Long2DoubleMap>();
+        itemIndexes = new Long2IntOpenHashMap();
+        itemIndexes.defaultReturnValue(-1);
+        itemIds = new LongArrayList();
+        itemStats = new ArrayList<ItemStats>();
+
+        for (long item: idao.getItemIds()) {
+            indexOf(item);
+        }
+        Cursor<UserHistory<Event>> stream = uedao.streamEventsByUser();
+        try {
+            for (UserHistory<Event> evt: stream) {
+                SparseVector vector = RatingVectorUserHistorySummarizer.makeRatingVector(evt);
+                Long2DoubleMap ratings = new Long2DoubleOpenHashMap(vector.size());
+                for (VectorEntry e: vector.fast()) {
+                    ratings.put(e.getKey(), e.getValue());
+                }
+                if (!ratings.isEmpty()) {
+                    userRatings.put(evt.getUserId(), ratings);
+                    accumulate(ratings, 1, null);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        model = snapshot(IntSets.EMPTY_SET);
+        logger.info("loaded {} users and {} items", userRatings.size(), itemIds.size());
+    }
+
+    /**
+     * Get the current model.
+     * @return The model snapshot reflecting all ratings seen so far.
+     */
+    public synchronized SimpleItemItemModel getModel() {
+        return model;
+    }
+
+    /**
+     * Apply a batch of rating events.  A rating replaces any earlier rating of the same item by
+     * the same user; an unrate event (a rating with no preference) removes it.
+     * @param ratings The new rating events.
+     * @return The new model snapshot.
+     */
+    public synchronized SimpleItemItemModel update(Collection<? extends Rating> ratings) {
+        // group the events by user, in time order
+        List<Rating> sorted = new ArrayList<Rating>(ratings);
+        Collections.sort(sorted, TIMESTAMP_ORDER);
+        Long2ObjectMap<List<Rating>> byUser = new Long2ObjectOpenHashMap<List<Rating>>();
+        for (Rating r: sorted) {
+            List<Rating> list = byUser.get(r.getUserId());
+            if (list == null) {
+                list = new ArrayList<Rating>();
+                byUser.put(r.getUserId(), list);
+            }
+            list.add(r);
+        }
+
+        IntSet affected = new IntOpenHashSet();
+        for (Long2ObjectMap.Entry<List<Rating>> e: byUser.long2ObjectEntrySet()) {
+            long user = e.getLongKey();
+            Long2DoubleMap old = userRatings.get(user);
+            Long2DoubleMap updated;
+            if (old == null) {
+                updated = new Long2DoubleOpenHashMap();
+            } else {
+                accumulate(old, -1, affected);
+                updated = new Long2DoubleOpenHashMap(old);
+            }
+            for (Rating r: e.getValue()) {
+                Preference p = r.getPreference();
+                if (p == null) {
+                    updated.remove(r.getItemId());
+                } else {
+                    updated.put(r.getItemId(), p.getValue());
+                }
+            }
+            if (updated.isEmpty()) {
+                userRatings.remove(user);
+            } else {
+                userRatings.put(user, updated);
+                accumulate(updated, 1, affected);
+            }
+        }
+
+        // an item's norm change alters its similarity to everything it is co-rated with
+        IntSet changed = new IntOpenHashSet(affected);
+        IntIterator iter = affected.iterator();
+        while (iter.hasNext()) {
+            changed.addAll(itemStats.get(iter.nextInt()).dots.keySet());
+        }
+        logger.info("applying {} ratings by {} users: recomputing {} of {} neighborhoods",
+                    new Object[]{ratings.size(), byUser.size(), changed.size(), itemIds.size()});
+        model = snapshot(changed);
+        return model;
+    }
+
+    /**
+     * Add or subtract a user's contributions to the item statistics.
+     * @param ratings The user's ratings.
+     * @param sign 1 to add the user's contributions, -1 to remove them.
+     * @param touched A set to receive the indexes of every item whose statistics changed, or
+     *                {@code null}.
+     */
+    private void accumulate(Long2DoubleMap ratings, int sign, IntSet touched) {
+        int n = ratings.size();
+        double mean = 0;
+        for (Long2DoubleMap.Entry e: ratings.long2DoubleEntrySet()) {
+            mean += e.getDoubleValue();
+        }
+        mean /= n;
+
+        int[] indexes = new int[n];
+        double[] values = new double[n];
+        int k = 0;
+        for (Long2DoubleMap.Entry e: ratings.long2DoubleEntrySet()) {
+            indexes[k] = indexOf(e.getLongKey());
+            values[k] = e.getDoubleValue() - mean;
+            k++;
+        }
+        for (int a = 0; a < n; a++) {
+            ItemStats si = itemStats.get(indexes[a]);
+            si.sqnorm += sign * values[a] * values[a];
+            if (touched != null) {
+                touched.add(indexes[a]);
+            }
+            for (int b = a + 1; b < n; b++) {
+                double product = sign * values[a] * values[b];
+                si.add(indexes[b], product, sign);
+                itemStats.get(indexes[b]).add(indexes[a], product, sign);
+            }
+        }
+    }
+
+    private int indexOf(long item) {
+        int idx = itemIndexes.get(item);
+        if (idx < 0) {
+            idx = itemIds.size();
+            itemIndexes.put(item, idx);
+            itemIds.add(item);
+            itemStats.add(new ItemStats());
+        }
+        return idx;
+    }
+
+    /**
+     * Build a model snapshot, recomputing the neighborhoods of some items.  The new snapshot
+     * shares the storage of every other neighborhood with the current model.  If items have
+     * been added since the current model was built, every neighborhood is recomputed.
+     * @param changed The indexes of the items whose neighborhoods must be recomputed.
+     */
+    private SimpleItemItemModel snapshot(IntSet changed) {
+        int n = itemIds.size();
+        TopNSelector selector = new TopNSelector(SimpleItemItemModelBuilder.selectorSize(modelSize, n));
+        if (model == null || model.getItemCount() != n) {
+            long[] ids = itemIds.toLongArray();
+            LongArrays.quickSort(ids);
+            long[][] rowIds = new long[n][];
+            float[][] rowScores = new float[n][];
+            for (int i = 0; i < n; i++) {
+                selectNeighbors(itemIndexes.get(ids[i]), selector);
+                rowIds[i] = new long[selector.size()];
+                rowScores[i] = new float[rowIds[i].length];
+                selector.finishInto(rowIds[i], rowScores[i], 0);
+            }
+            return SimpleItemItemModel.fromRows(ids, rowIds, rowScores);
+        }
+
+        int[] rows = new int[changed.size()];
+        long[][] rowIds = new long[rows.length][];
+        float[][] rowScores = new float[rows.length][];
+        IntIterator iter = changed.iterator();
+        for (int r = 0; r < rows.length; r++) {
+            int idx = iter.nextInt();
+            rows[r] = model.itemIndex(itemIds.getLong(idx));
+            selectNeighbors(idx, selector);
+            rowIds[r] = new long[selector.size()];
+            rowScores[r] = new float[rowIds[r].length];
+            selector.finishInto(rowIds[r], rowScores[r], 0);
+        }
+        return model.withRows(rows, rowIds, rowScores);
+    }
+
+    /**
+     * Select an item's neighbors from its statistics.
+     * @param idx The item's index.
+     * @param selector The selector to receive the neighbors.
+     */
+    private void selectNeighbors(int idx, TopNSelector selector) {
+        ItemStats si = itemStats.get(idx);
+        double norm = Math.sqrt(Math.max(si.sqnorm, 0));
+        for (Int2DoubleMap.Entry e: si.dots.int2DoubleEntrySet()) {
+            int j = e.getIntKey();
+            double otherNorm = Math.sqrt(Math.max(itemStats.get(j).sqnorm, 0));
+            double similarity = e.getDoubleValue() / (norm * otherNorm);
+            if (similarity > 0.0) {
+                selector.put(itemIds.getLong(j), similarity);
+            }
+        }
+    }
+
+    /**
+     * Similarity statistics of one item: its squared norm, and its dot products with and
+     * number of common raters with each co-rated item.
+     */
+    private static class ItemStats {
+        final Int2DoubleOpenHashMap dots = new Int2DoubleOpenHashMap();
+        final Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+        double sqnorm;
+
+        void add(int other, double product, int count) {
+            int total = counts.addTo(other, count) + count;
+            if (total <= 0) {
+                counts.remove(other);
+                dots.remove(other);
+            } else {
+                dots.addTo(other, product);
+            }
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package edu.umn.cs.recsys.ii;
 
+import edu.umn.cs.recsys.dao.RatingIndexDAO;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.grouplens.lenskit.basic.AbstractItemScorer;
 import org.grouplens.lenskit.data.dao.UserEventDAO;
-import org.grouplens.lenskit.data.event.Rating;
-import org.grouplens.lenskit.data.history.History;
-import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
-import org.grouplens.lenskit.data.history.UserHistory;
 import org.grouplens.lenskit.knn.NeighborhoodSize;
 import org.grouplens.lenskit.scored.ScoredId;
-import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
@@ -18,9 +15,8 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
@@ -39,17 +35,16 @@ public class SimpleItemItemScorer extends AbstractItemScorer {
         neighborhoodSize = nnbrs;
     }
 
-    private void printNeighborhood(long item, List<ScoredId> neighbors) {
-        logger.info("Printing the {} neighbors of item {}", neighbors.size(), item);
-        int numprinted = 0;
-        for (ScoredId scoredId : neighbors) {
-            long jtem = scoredId.getId();
-            double similarity = scoredId.getScore();
-            logger.info("   jtem: {}, similarity: {}", jtem, similarity);
-            numprinted++;
-            if (numprinted >= 10) {
-                break;
-            }
+    private void printNeighborhood(long item) {
+        int idx = model.itemIndex(item);
+        if (idx < 0) {
+            return;
+        }
+        int start = model.neighborStart(idx);
+        int end = model.neighborEnd(idx);
+        logger.info("Printing the {} neighbors of item {}", end - start, item);
+        for (int pos = start; pos < end && pos < start + 10; pos++) {
+            logger.info("   jtem: {}, similarity: {}", model.neighborId(pos), model.neighborScore(pos));
         }
     }
 
@@ -57,54 +52,186 @@ public class SimpleItemItemScorer extends AbstractItemScorer {
      * The rating predicted for 'item' for 'user'
      */
     public double predictedRating(long user, long item) {
-        List<ScoredId> neighbors = model.getNeighbors(item);
-//        printNeighborhood(item, neighbors);
-        SparseVector userRatings = getUserRatingVector(user);
-        Map<Long, Double> ratedNeighbors = new HashMap<Long, Double>();
+//        printNeighborhood(item);
+        return predictedRating(getUserRatingVector(user), item);
+    }
+
+    /**
+     * Predict a rating from the user's ratings of the item's most similar neighbors.  This
+     * walks the model's neighbor arrays directly and does not allocate.
+     * @param userRatings The user's rating vector.
+     * @param item The item to score.
+     * @return The weighted average of the user's ratings of the item's neighbors, or NaN if the
+     *         user has not rated any of them.
+     */
+    private double predictedRating(SparseVector userRatings, long item) {
+        int idx = model.itemIndex(item);
+        if (idx < 0) {
+            return Double.NaN;
+        }
+        double dot = 0;
+        double sum = 0;
         int numNeighbors = 0;
-        for (ScoredId scoredId : neighbors) {
-            long jtem = scoredId.getId();
-            double similarity = scoredId.getScore();
-            if (userRatings.containsKey(jtem)) {
-                ratedNeighbors.put(jtem, similarity);
+        int end = model.neighborEnd(idx);
+        for (int pos = model.neighborStart(idx); pos < end && numNeighbors < neighborhoodSize; pos++) {
+            double rating = userRatings.get(model.neighborId(pos), Double.NaN);
+            if (!Double.isNaN(rating)) {
+                double similarity = model.neighborScore(pos);
+                dot += similarity * rating;
+                sum += similarity;
                 numNeighbors++;
-                if (numNeighbors >= neighborhoodSize) {
-                    break;
-                }
             }
         }
-        SparseVector similarities = ImmutableSparseVector.create(ratedNeighbors);
-        return similarities.dot(userRatings) / similarities.sum();
+        return dot / sum;
     }
 
     /**
-     * Score items for a user.
+     * Score items for a user.  Items are scored either by scanning each candidate's neighbors
+     * for items the user rated, or by pushing each rated item's contributions to the candidates
+     * that have it as a neighbor, whichever is estimated to touch fewer neighbor entries.
      * @param user The user ID.
      * @param scores The score vector.  Its key domain is the items to score, and the scores
      *               (rating predictions) should be written back to this vector.
      */
     @Override
     public void score(long user, @Nonnull MutableSparseVector scores) {
+        // fetch the user's ratings once for all the items
+        SparseVector userRatings = getUserRatingVector(user);
+        if (ratingsCost(userRatings) < candidatesCost(scores)) {
+            scoreByRatings(userRatings, scores);
+        } else {
+            scoreByCandidates(userRatings, scores);
+        }
+    }
 
+    /**
+     * Score items by scanning each candidate item's neighbors.
+     * @param userRatings The user's ratings.
+     * @param scores The score vector.
+     */
+    void scoreByCandidates(SparseVector userRatings, MutableSparseVector scores) {
         for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
             long item = e.getKey();
-            // TODO Score this item and save the score into scores
-            double prediction = predictedRating(user, item);
+            double prediction = predictedRating(userRatings, item);
             scores.set(e, prediction);
         }
     }
 
+    /**
+     * Score items by pushing the user's ratings through the model's reverse neighbor index.
+     * The predictions are identical to {@link #scoreByCandidates(SparseVector, MutableSparseVector)}.
+     * @param userRatings The user's ratings.
+     * @param scores The score vector.
+     */
+    void scoreByRatings(SparseVector userRatings, MutableSparseVector scores) {
+        int nitems = model.getItemCount();
+        boolean[] candidates = new boolean[nitems];
+        for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
+            int idx = model.itemIndex(e.getKey());
+            if (idx >= 0) {
+                candidates[idx] = true;
+            }
+        }
+        double[] dots = new double[nitems];
+        double[] sums = new double[nitems];
+
+        if (userRatings.size() <= neighborhoodSize) {
+            // every rated neighbor of a candidate is within its neighborhood
+            for (VectorEntry r: userRatings.fast()) {
+                int ridx = model.itemIndex(r.getKey());
+                if (ridx < 0) {
+                    continue;
+                }
+                double rating = r.getValue();
+                int end = model.reverseEnd(ridx);
+                for (int rpos = model.reverseStart(ridx); rpos < end; rpos++) {
+                    int owner = model.reverseOwner(rpos);
+                    if (candidates[owner]) {
+                        double similarity = model.neighborScore(model.reversePosition(rpos));
+                        dots[owner] += similarity * rating;
+                        sums[owner] += similarity;
+                    }
+                }
+            }
+        } else {
+            // only each candidate's most similar rated neighbors count, so collect the entries
+            // as (candidate, position) keys and sort them to visit neighbors in rank order
+            LongArrayList entries = new LongArrayList();
+            for (VectorEntry r: userRatings.fast()) {
+                int ridx = model.itemIndex(r.getKey());
+                if (ridx < 0) {
+                    continue;
+                }
+                int end = model.reverseEnd(ridx);
+                for (int rpos = model.reverseStart(ridx); rpos < end; rpos++) {
+                    int owner = model.reverseOwner(rpos);
+                    if (candidates[owner]) {
+                        entries.add(((long) owner << 32) | model.reversePosition(rpos));
+                    }
+                }
+            }
+            long[] keys = entries.elements();
+            int nkeys = entries.size();
+            Arrays.sort(keys, 0, nkeys);
+            int owner = -1;
+            int count = 0;
+            for (int i = 0; i < nkeys; i++) {
+                int o = (int) (keys[i] >>> 32);
+                if (o != owner) {
+                    owner = o;
+                    count = 0;
+                }
+                if (count < neighborhoodSize) {
+                    int pos = (int) keys[i];
+                    double similarity = model.neighborScore(pos);
+                    dots[owner] += similarity * userRatings.get(model.neighborId(pos));
+                    sums[owner] += similarity;
+                    count++;
+                }
+            }
+        }
+
+        for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
+            int idx = model.itemIndex(e.getKey());
+            scores.set(e, idx >= 0 ? dots[idx] / sums[idx] : Double.NaN);
+        }
+    }
+
+    /**
+     * Estimate the number of neighbor entries visited by scoring from the candidates.
+     */
+    private double candidatesCost(SparseVector scores) {
+        int nitems = model.getItemCount();
+        if (nitems == 0) {
+            return 0;
+        }
+        return scores.keyDomain().size() * ((double) model.getNeighborCount() / nitems);
+    }
+
+    /**
+     * Compute the number of reverse neighbor entries visited by scoring from the ratings.
+     */
+    private double ratingsCost(SparseVector userRatings) {
+        long entries = 0;
+        for (VectorEntry r: userRatings.fast()) {
+            int ridx = model.itemIndex(r.getKey());
+            if (ridx >= 0) {
+                entries += model.reverseEnd(ridx) - model.reverseStart(ridx);
+            }
+        }
+        if (userRatings.size() > neighborhoodSize && entries > 1) {
+            // the entries must be sorted
+            return entries * (Math.log(entries) / Math.log(2));
+        }
+        return entries;
+    }
+
     /**
      * Get a user's ratings.
      * @param user The user ID.
      * @return The ratings to retrieve.
      */
     private SparseVector getUserRatingVector(long user) {
-        UserHistory<Rating> history = userEvents.getEventsForUser(user, Rating.class);
-        if (history == null) {
-            history = History.forUser(user);
-        }
-
-        return RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        return RatingIndexDAO.userRatingVector(userEvents, user);
     }
 }
@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of threads used to build models.  0 uses one thread per
+ * available processor.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ThreadCount {
+}
@@ -0,0 +1,31 @@
+package edu.umn.cs.recsys.ii;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Provide an item-item model from a {@link SimpleItemItemModelUpdater}, so a recommender that
+ * will apply updates builds the similarity statistics only once: the updater's initial
+ * snapshot is the model, and the same updater can then be fetched from the recommender to
+ * apply new ratings.  To use it, bind it as the model provider and make the updater a root:
+ * <pre>
+ * config.bind(SimpleItemItemModel.class)
+ *       .toProvider(UpdatableItemItemModelProvider.class);
+ * config.addRoot(SimpleItemItemModelUpdater.class);
+ * </pre>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class UpdatableItemItemModelProvider implements Provider<SimpleItemItemModel> {
+    private final SimpleItemItemModelUpdater updater;
+
+    @Inject
+    public UpdatableItemItemModelProvider(SimpleItemItemModelUpdater upd) {
+        updater = upd;
+    }
+
+    @Override
+    public SimpleItemItemModel get() {
+        return updater.getModel();
+    }
+}
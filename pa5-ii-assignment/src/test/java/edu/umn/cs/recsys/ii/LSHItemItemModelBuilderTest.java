@@ -0,0 +1,82 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LSHItemItemModelBuilderTest {
+    private static final int ITEMS = 30;
+
+    private EventDAO dao;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(5);
+        List<Event> events = new ArrayList<Event>();
+        for (long u = 1; u <= 25; u++) {
+            for (long i = 1; i <= ITEMS; i++) {
+                if (rng.nextInt(3) == 0) {
+                    events.add(Ratings.make(u, i, 1 + rng.nextInt(9) * 0.5, u * 100 + i));
+                }
+            }
+        }
+        // items whose mean-centered vectors are zero
+        events.add(Ratings.make(100, ITEMS + 1, 4.0, 1));
+        events.add(Ratings.make(101, ITEMS + 2, 2.0, 1));
+        dao = new EventCollectionDAO(events);
+    }
+
+    private LSHItemItemModelBuilder lsh(int nnbrs, int ntables, int nbits) {
+        return new LSHItemItemModelBuilder(new PrefetchingItemDAO(dao),
+                                           new PrefetchingUserEventDAO(dao),
+                                           nnbrs, ntables, nbits, 0, null);
+    }
+
+    /**
+     * With enough one-bit tables, every pair of positively similar items shares a bucket in
+     * some table, so the approximate model is exact.
+     */
+    @Test
+    public void testFullTablesGiveExactModel() {
+        SimpleItemItemModel approx = lsh(5, 64, 1).get();
+        SimpleItemItemModel exact = new SimpleItemItemModelBuilder(
+                new PrefetchingItemDAO(dao), new PrefetchingUserEventDAO(dao), 5, 2, null).get();
+        assertThat(approx.getItemCount(), equalTo(exact.getItemCount()));
+        for (int i = 0; i < exact.getItemCount(); i++) {
+            long item = exact.itemId(i);
+            assertThat(approx.getNeighbors(item), equalTo(exact.getNeighbors(item)));
+        }
+    }
+
+    @Test
+    public void testZeroNormItemsHaveNoNeighbors() {
+        SimpleItemItemModel model = lsh(5, 4, 63).get();
+        for (long item = ITEMS + 1; item <= ITEMS + 2; item++) {
+            int idx = model.itemIndex(item);
+            assertThat(model.neighborEnd(idx) - model.neighborStart(idx), equalTo(0));
+            assertThat(model.reverseEnd(idx) - model.reverseStart(idx), equalTo(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoTables() {
+        lsh(5, 0, 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTooManyBits() {
+        lsh(5, 4, 64);
+    }
+}
@@ -0,0 +1,100 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.grouplens.lenskit.GlobalItemRecommender;
+import org.grouplens.lenskit.basic.TopNGlobalItemRecommender;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SimpleGlobalItemRecommenderTest {
+    private static final int ITEMS = 10;
+
+    private GlobalItemRecommender recommender;
+    private GlobalItemRecommender expected;
+
+    @Before
+    public void createRecommenders() {
+        Random rng = new Random(11);
+        long[] items = new long[ITEMS];
+        TopNSelector[] selectors = new TopNSelector[ITEMS];
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < ITEMS; i++) {
+            items[i] = i + 1;
+            selectors[i] = new TopNSelector(ITEMS);
+            events.add(Ratings.make(1, items[i], 3.0, i));
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            for (int j = i + 1; j < ITEMS; j++) {
+                if (rng.nextInt(2) == 0) {
+                    double sim = rng.nextDouble();
+                    selectors[i].put(items[j], sim);
+                    selectors[j].put(items[i], sim);
+                }
+            }
+        }
+        SimpleItemItemModel model = SimpleItemItemModel.fromSelectors(items, selectors);
+        ItemDAO dao = new PrefetchingItemDAO(new EventCollectionDAO(events));
+        SimpleGlobalItemScorer scorer = new SimpleGlobalItemScorer(model);
+        recommender = new SimpleGlobalItemRecommender(dao, scorer, model);
+        expected = new TopNGlobalItemRecommender(dao, scorer);
+    }
+
+    private static Set<Long> set(Long... ids) {
+        return new HashSet<Long>(Arrays.asList(ids));
+    }
+
+    /**
+     * Get the recommendations of the plain top-N recommender that have positive scores.
+     */
+    private List<ScoredId> positive(Set<Long> basket, int n,
+                                    Set<Long> candidates, Set<Long> exclude) {
+        List<ScoredId> positive = new ArrayList<ScoredId>();
+        for (ScoredId id: expected.globalRecommend(basket, -1, candidates, exclude)) {
+            if (id.getScore() > 0 && (n < 0 || positive.size() < n)) {
+                positive.add(id);
+            }
+        }
+        return positive;
+    }
+
+    private void assertMatches(Set<Long> basket, int n, Set<Long> candidates, Set<Long> exclude) {
+        List<ScoredId> actual = recommender.globalRecommend(basket, n, candidates, exclude);
+        assertThat(actual, equalTo(positive(basket, n, candidates, exclude)));
+    }
+
+    @Test
+    public void testSingleItemBaskets() {
+        for (long item = 1; item <= ITEMS; item++) {
+            assertMatches(set(item), 5, null, null);
+            assertMatches(set(item), -1, null, Collections.<Long>emptySet());
+            assertMatches(set(item), 3, null, set(2L, 3L, 5L));
+            assertMatches(set(item), -1, set(1L, 4L, 6L, 7L, 9L), set(4L));
+        }
+    }
+
+    @Test
+    public void testSmallBaskets() {
+        assertMatches(set(1L, 2L), 5, null, null);
+        // an explicit exclude set replaces the default of excluding the basket
+        assertMatches(set(1L, 2L, 3L), -1, null, Collections.<Long>emptySet());
+        assertMatches(set(1L, 2L, 3L), -1, null, set(4L, 5L));
+        assertMatches(set(2L, 7L), 2, set(1L, 2L, 3L, 8L, 10L), set(3L));
+    }
+}
@@ -0,0 +1,95 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SimpleItemItemModelBuilderTest {
+    private EventDAO dao;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(7);
+        List<Event> events = new ArrayList<Event>();
+        for (long u = 1; u <= 20; u++) {
+            for (long i = 1; i <= 25; i++) {
+                if (rng.nextInt(3) == 0) {
+                    // whole-star ratings make for plenty of tied similarities
+                    events.add(Ratings.make(u, i, 1 + rng.nextInt(4), u * 100 + i));
+                }
+            }
+        }
+        dao = new EventCollectionDAO(events);
+    }
+
+    private SimpleItemItemModel build(int nnbrs, int nthreads) {
+        return new SimpleItemItemModelBuilder(new PrefetchingItemDAO(dao),
+                                              new PrefetchingUserEventDAO(dao),
+                                              nnbrs, nthreads, null).get();
+    }
+
+    /**
+     * Select each item's neighbors by computing every similarity in both directions.
+     */
+    private SimpleItemItemModel bruteForce(int nnbrs) {
+        Map<Long,ImmutableSparseVector> vectors = SimpleItemItemModelBuilder.buildItemVectors(
+                new PrefetchingItemDAO(dao), new PrefetchingUserEventDAO(dao));
+        long[] items = new long[vectors.size()];
+        int n = 0;
+        for (long item = 1; item <= 25; item++) {
+            if (vectors.containsKey(item)) {
+                items[n++] = item;
+            }
+        }
+        CosineVectorSimilarity cvs = new CosineVectorSimilarity();
+        TopNSelector[] selectors = new TopNSelector[n];
+        for (int i = 0; i < n; i++) {
+            selectors[i] = new TopNSelector(SimpleItemItemModelBuilder.selectorSize(nnbrs, n));
+            for (int j = 0; j < n; j++) {
+                double sim = cvs.similarity(vectors.get(items[i]), vectors.get(items[j]));
+                if (i != j && sim > 0) {
+                    selectors[i].put(items[j], sim);
+                }
+            }
+        }
+        return SimpleItemItemModel.fromSelectors(items, selectors);
+    }
+
+    private static void assertSameNeighbors(SimpleItemItemModel actual,
+                                            SimpleItemItemModel expected) {
+        assertThat(actual.getItemCount(), equalTo(expected.getItemCount()));
+        for (int i = 0; i < expected.getItemCount(); i++) {
+            long item = expected.itemId(i);
+            assertThat(actual.getNeighbors(item), equalTo(expected.getNeighbors(item)));
+        }
+    }
+
+    @Test
+    public void testTruncatedModelMatchesBruteForce() {
+        SimpleItemItemModel expected = bruteForce(3);
+        for (int nthreads = 1; nthreads <= 4; nthreads++) {
+            assertSameNeighbors(build(3, nthreads), expected);
+        }
+    }
+
+    @Test
+    public void testFullModelMatchesBruteForce() {
+        assertSameNeighbors(build(0, 3), bruteForce(0));
+    }
+}
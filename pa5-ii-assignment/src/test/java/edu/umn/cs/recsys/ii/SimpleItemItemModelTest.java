@@ -0,0 +1,107 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class SimpleItemItemModelTest {
+    private static final long[] ITEMS = {3, 5, 8, 13};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimpleItemItemModel model;
+
+    @Before
+    public void createModel() {
+        TopNSelector[] selectors = new TopNSelector[ITEMS.length];
+        for (int i = 0; i < ITEMS.length; i++) {
+            selectors[i] = new TopNSelector(2);
+        }
+        selectors[0].put(5, 0.5);
+        selectors[0].put(8, 0.25);
+        selectors[0].put(13, 0.75);
+        selectors[1].put(3, 0.5);
+        selectors[3].put(3, 0.75);
+        model = SimpleItemItemModel.fromSelectors(ITEMS, selectors);
+    }
+
+    @Test
+    public void testNeighborArrays() {
+        assertThat(model.getItemCount(), equalTo(ITEMS.length));
+        assertThat(model.getNeighborCount(), equalTo(4));
+        assertThat(model.itemIndex(4), lessThan(0));
+        int idx = model.itemIndex(3);
+        assertThat(model.neighborEnd(idx) - model.neighborStart(idx), equalTo(2));
+        assertThat(model.neighborId(model.neighborStart(idx)), equalTo(13L));
+        assertThat(model.neighborScore(model.neighborStart(idx)), closeTo(0.75, 1.0e-6));
+        assertThat(model.neighborId(model.neighborStart(idx) + 1), equalTo(5L));
+        idx = model.itemIndex(8);
+        assertThat(model.neighborEnd(idx), equalTo(model.neighborStart(idx)));
+    }
+
+    @Test
+    public void testReverseIndex() {
+        // item 3 is a neighbor of 13 (0.75) and of 5 (0.5)
+        int idx = model.itemIndex(3);
+        assertThat(model.reverseEnd(idx) - model.reverseStart(idx), equalTo(2));
+        int rpos = model.reverseStart(idx);
+        assertThat(model.itemId(model.reverseOwner(rpos)), equalTo(13L));
+        assertThat(model.itemId(model.reverseOwner(rpos + 1)), equalTo(5L));
+        assertThat(model.getSimilarItems(3, 1).size(), equalTo(1));
+    }
+
+    @Test
+    public void testWriteOpenRoundTrip() throws IOException {
+        File file = folder.newFile("model.bin");
+        model.write(file);
+        SimpleItemItemModel mapped = SimpleItemItemModel.open(file);
+        assertThat(mapped.getItemCount(), equalTo(model.getItemCount()));
+        assertThat(mapped.getNeighborCount(), equalTo(model.getNeighborCount()));
+        for (int i = 0; i < ITEMS.length; i++) {
+            assertThat(mapped.itemId(i), equalTo(ITEMS[i]));
+            assertThat(mapped.getNeighbors(ITEMS[i]), equalTo(model.getNeighbors(ITEMS[i])));
+            assertThat(mapped.getSimilarItems(ITEMS[i], -1),
+                       equalTo(model.getSimilarItems(ITEMS[i], -1)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenRejectsTruncatedFile() throws IOException {
+        File file = folder.newFile("model.bin");
+        model.write(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        SimpleItemItemModel.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenRejectsBadOffsets() throws IOException {
+        File file = folder.newFile("model.bin");
+        model.write(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the second neighbor offset, after the 16-byte header and the item IDs
+            raf.seek(16 + 8 * ITEMS.length + 4);
+            raf.writeInt(7);
+        } finally {
+            raf.close();
+        }
+        SimpleItemItemModel.open(file);
+    }
+}
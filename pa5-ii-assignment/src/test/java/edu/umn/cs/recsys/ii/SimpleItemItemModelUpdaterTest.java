@@ -0,0 +1,92 @@
+package edu.umn.cs.recsys.ii;
+
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SimpleItemItemModelUpdaterTest {
+    private static final int MODEL_SIZE = 4;
+
+    private Random rng;
+    private List<Event> events;
+
+    @Before
+    public void createRatings() {
+        rng = new Random(9);
+        events = new ArrayList<Event>();
+        for (long u = 1; u <= 20; u++) {
+            for (long i = 1; i <= 15; i++) {
+                if (rng.nextInt(3) == 0) {
+                    // continuous ratings, so no two similarities tie
+                    events.add(Ratings.make(u, i, 1 + 4 * rng.nextDouble(), 10));
+                }
+            }
+        }
+    }
+
+    private static SimpleItemItemModel rebuild(List<Event> events) {
+        EventDAO dao = new EventCollectionDAO(events);
+        return new SimpleItemItemModelBuilder(new PrefetchingItemDAO(dao),
+                                              new PrefetchingUserEventDAO(dao),
+                                              MODEL_SIZE, 1, null).get();
+    }
+
+    private static void assertSameModel(SimpleItemItemModel actual, SimpleItemItemModel expected) {
+        assertThat(actual.getItemCount(), equalTo(expected.getItemCount()));
+        for (int i = 0; i < expected.getItemCount(); i++) {
+            long item = expected.itemId(i);
+            List<ScoredId> exp = expected.getNeighbors(item);
+            List<ScoredId> act = actual.getNeighbors(item);
+            assertThat(act.size(), equalTo(exp.size()));
+            for (int n = 0; n < exp.size(); n++) {
+                assertThat(act.get(n).getId(), equalTo(exp.get(n).getId()));
+                assertThat(act.get(n).getScore(), closeTo(exp.get(n).getScore(), 1.0e-5));
+            }
+        }
+    }
+
+    @Test
+    public void testInitialModelMatchesBuild() {
+        EventDAO dao = new EventCollectionDAO(events);
+        SimpleItemItemModelUpdater updater = new SimpleItemItemModelUpdater(
+                new PrefetchingItemDAO(dao), new PrefetchingUserEventDAO(dao), MODEL_SIZE);
+        assertSameModel(updater.getModel(), rebuild(events));
+    }
+
+    @Test
+    public void testUpdatesMatchRebuild() {
+        EventDAO dao = new EventCollectionDAO(events);
+        SimpleItemItemModelUpdater updater = new SimpleItemItemModelUpdater(
+                new PrefetchingItemDAO(dao), new PrefetchingUserEventDAO(dao), MODEL_SIZE);
+        List<Event> all = new ArrayList<Event>(events);
+        for (int batch = 0; batch < 3; batch++) {
+            List<Rating> ratings = new ArrayList<Rating>();
+            for (int k = 0; k < 8; k++) {
+                long user = 1 + rng.nextInt(22);
+                long item = 1 + rng.nextInt(15);
+                ratings.add(Ratings.make(user, item, 1 + 4 * rng.nextDouble(), 20 + batch));
+            }
+            // and unrate one of the original ratings
+            Rating old = (Rating) events.get(batch);
+            ratings.add(Ratings.newBuilder().setUserId(old.getUserId()).setItemId(old.getItemId())
+                               .setTimestamp(30 + batch).build());
+            all.addAll(ratings);
+            assertSameModel(updater.update(ratings), rebuild(all));
+        }
+    }
+}
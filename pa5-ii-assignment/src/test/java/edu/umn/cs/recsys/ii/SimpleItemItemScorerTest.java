@@ -0,0 +1,97 @@
+package edu.umn.cs.recsys.ii;
+
+import edu.umn.cs.recsys.TopNSelector;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SimpleItemItemScorerTest {
+    private static final int ITEMS = 40;
+    private static final int MODEL_SIZE = 12;
+
+    private SimpleItemItemModel model;
+    private Random rng;
+
+    @Before
+    public void createModel() {
+        rng = new Random(31);
+        long[] items = new long[ITEMS];
+        TopNSelector[] selectors = new TopNSelector[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            items[i] = 10 + 2 * i;
+            selectors[i] = new TopNSelector(MODEL_SIZE);
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            for (int j = 0; j < ITEMS; j++) {
+                if (i != j && rng.nextInt(3) > 0) {
+                    // few distinct similarities, so neighbors tie
+                    selectors[i].put(items[j], 0.1 * (1 + rng.nextInt(8)));
+                }
+            }
+        }
+        model = SimpleItemItemModel.fromSelectors(items, selectors);
+    }
+
+    /**
+     * Make a rating vector over some of the model's items and an unknown item.
+     */
+    private MutableSparseVector randomRatings(int count) {
+        long[] keys = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            keys[i] = 10 + 2 * i;
+        }
+        keys[count] = 7;
+        MutableSparseVector ratings = MutableSparseVector.create(keys);
+        for (long key: keys) {
+            ratings.set(key, 1 + rng.nextInt(9) * 0.5);
+        }
+        return ratings;
+    }
+
+    private void assertStrategiesAgree(int nnbrs, int nrated) {
+        SimpleItemItemScorer scorer = new SimpleItemItemScorer(model, null, nnbrs);
+        MutableSparseVector ratings = randomRatings(nrated);
+        // every other model item, plus an unknown one
+        long[] keys = new long[ITEMS / 2 + 1];
+        for (int i = 0; i < ITEMS / 2; i++) {
+            keys[i] = 10 + 4 * i;
+        }
+        keys[ITEMS / 2] = 9;
+        MutableSparseVector byCandidates = MutableSparseVector.create(keys);
+        MutableSparseVector byRatings = MutableSparseVector.create(keys);
+        scorer.scoreByCandidates(ratings, byCandidates);
+        scorer.scoreByRatings(ratings, byRatings);
+        for (VectorEntry e: byCandidates.fast(VectorEntry.State.EITHER)) {
+            double expected = byCandidates.get(e.getKey());
+            double actual = byRatings.get(e.getKey());
+            if (Double.isNaN(expected)) {
+                assertThat("item " + e.getKey(), Double.isNaN(actual), equalTo(true));
+            } else {
+                assertThat("item " + e.getKey(), actual, closeTo(expected, 1.0e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testFewRatingsMatchCandidateScan() {
+        // the user has no more ratings than the neighborhood size
+        for (int nrated: new int[]{0, 1, 3, 5}) {
+            assertStrategiesAgree(5, nrated);
+        }
+    }
+
+    @Test
+    public void testManyRatingsMatchCandidateScan() {
+        // candidates have more rated neighbors than the neighborhood size
+        for (int nrated: new int[]{6, 20, ITEMS}) {
+            assertStrategiesAgree(3, nrated);
+        }
+    }
+}
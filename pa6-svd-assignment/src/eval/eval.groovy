@@ -2,7 +2,9 @@ import edu.umn.cs.recsys.dao.CSVItemTagDAO
 import edu.umn.cs.recsys.dao.TagFile
 import edu.umn.cs.recsys.dao.TitleFile
 import edu.umn.cs.recsys.svd.LatentFeatureCount
+import edu.umn.cs.recsys.svd.SGDModelBuilder
 import edu.umn.cs.recsys.svd.SVDItemScorer
+import edu.umn.cs.recsys.svd.SVDModel
 import org.grouplens.lenskit.ItemScorer
 import org.grouplens.lenskit.baseline.*
 import org.grouplens.lenskit.data.dao.ItemDAO
@@ -134,5 +136,15 @@ trainTest {
             bind (BaselineScorer, ItemScorer) to UserMeanItemScorer
             bind (UserMeanBaseline, ItemScorer) to ItemMeanRatingItemScorer
         }
+
+        algorithm("SGDPersMean") {
+            attributes["FeatureCount"] = size
+            bind ItemScorer to SVDItemScorer
+            set LatentFeatureCount to size
+            // train factors of offsets from item-user mean by gradient descent
+            bind SVDModel toProvider SGDModelBuilder
+            bind (BaselineScorer, ItemScorer) to UserMeanItemScorer
+            bind (UserMeanBaseline, ItemScorer) to ItemMeanRatingItemScorer
+        }
     }
 }
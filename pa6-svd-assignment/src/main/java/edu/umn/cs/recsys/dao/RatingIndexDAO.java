@@ -0,0 +1,559 @@
+package edu.umn.cs.recsys.dao;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.grouplens.lenskit.collections.LongUtils;
+import org.grouplens.lenskit.cursors.AbstractCursor;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.ItemEventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemEventDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.History;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.data.pref.Preference;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Rating DAO that indexes the ratings by user and by item.  The ratings are read from the
+ * underlying event DAO once, the first time they are needed, and stored in compressed sparse
+ * row form: one set of parallel arrays per index, holding each user's (or item's) rating events
+ * as a contiguous slice.  Scorers can fetch rating vectors with
+ * {@link #userRatingVector(UserEventDAO, long)} and {@link #itemRatingVector(ItemEventDAO, long)}
+ * instead of rebuilding them from the user's events on every request.
+ * <p>
+ * Every rating event is indexed, including re-ratings and unrate events, and the histories and
+ * event streams this DAO serves hold all of them: sorted by user (or item), then by timestamp,
+ * as {@link SortOrder} requires.  The rating vectors, like those of
+ * {@link RatingVectorUserHistorySummarizer}, are deduplicated: each holds the most recent rating
+ * of each item (or by each user), and an item whose most recent event is an unrate is left out.
+ * The index records which events make up each vector, so a vector is copied straight out of
+ * its slice when it is requested, without storing the ratings a second time.
+ * <p>
+ * Events other than ratings are not indexed.  Event streams and histories that could include
+ * them are served by the underlying DAO, through LensKit's prefetching DAOs for histories.
+ * <p>
+ * Each assignment is a separate Maven project, so this class is copied into each one that uses
+ * it; the copies are kept identical.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RatingIndexDAO implements EventDAO, UserEventDAO, ItemEventDAO {
+    private static final Logger logger = LoggerFactory.getLogger(RatingIndexDAO.class);
+
+    private final EventDAO baseDao;
+    private transient volatile RatingTable userTable;
+    private transient volatile RatingTable itemTable;
+    private transient volatile boolean hasOtherEvents;
+    private transient volatile UserEventDAO userFallback;
+    private transient volatile ItemEventDAO itemFallback;
+
+    @Inject
+    public RatingIndexDAO(EventDAO events) {
+        baseDao = events;
+    }
+
+    /**
+     * Build the user and item indexes if we haven't done so already.
+     */
+    private void ensureIndex() {
+        if (itemTable == null) {
+            synchronized (this) {
+                if (itemTable == null) {
+                    buildIndex();
+                }
+            }
+        }
+    }
+
+    private void buildIndex() {
+        LongArrayList uids = new LongArrayList();
+        LongArrayList iids = new LongArrayList();
+        DoubleArrayList vals = new DoubleArrayList();
+        LongArrayList times = new LongArrayList();
+        Int2ObjectMap<Rating> unrates = new Int2ObjectOpenHashMap<Rating>();
+        int others = 0;
+        Cursor<Event> events = baseDao.streamEvents();
+        try {
+            for (Event evt: events) {
+                if (!(evt instanceof Rating)) {
+                    others++;
+                    continue;
+                }
+                Rating r = (Rating) evt;
+                Preference p = r.getPreference();
+                if (p == null) {
+                    // unrate events are kept as they are; NaN marks them in the arrays
+                    unrates.put(uids.size(), r);
+                    vals.add(Double.NaN);
+                } else {
+                    vals.add(p.getValue());
+                }
+                uids.add(r.getUserId());
+                iids.add(r.getItemId());
+                times.add(r.getTimestamp());
+            }
+        } finally {
+            events.close();
+        }
+        int n = uids.size();
+        long[] users = uids.elements();
+        long[] items = iids.elements();
+        double[] values = vals.elements();
+        long[] timestamps = times.elements();
+        hasOtherEvents = others > 0;
+        userTable = new RatingTable(true, n, users, items, values, timestamps, unrates);
+        itemTable = new RatingTable(false, n, items, users, values, timestamps, unrates);
+        logger.info("indexed {} rating events by {} users of {} items",
+                    new Object[]{n, userTable.size(), itemTable.size()});
+        if (others > 0) {
+            logger.info("{} non-rating events are not indexed", others);
+        }
+    }
+
+    /**
+     * Query whether the index holds every event of a type.
+     * @param type The event type.
+     * @return {@code true} if the underlying DAO has no events of the type other than ratings.
+     */
+    private boolean indexes(Class<? extends Event> type) {
+        return !hasOtherEvents || Rating.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Get the DAO serving user histories that the index does not hold.
+     */
+    private UserEventDAO getUserFallback() {
+        if (userFallback == null) {
+            synchronized (this) {
+                if (userFallback == null) {
+                    userFallback = baseDao instanceof UserEventDAO
+                            ? (UserEventDAO) baseDao
+                            : new PrefetchingUserEventDAO(baseDao);
+                }
+            }
+        }
+        return userFallback;
+    }
+
+    /**
+     * Get the DAO serving item histories that the index does not hold.
+     */
+    private ItemEventDAO getItemFallback() {
+        if (itemFallback == null) {
+            synchronized (this) {
+                if (itemFallback == null) {
+                    itemFallback = baseDao instanceof ItemEventDAO
+                            ? (ItemEventDAO) baseDao
+                            : new PrefetchingItemEventDAO(baseDao);
+                }
+            }
+        }
+        return itemFallback;
+    }
+
+    /**
+     * Get a user's rating vector.
+     * @param user The user ID.
+     * @return The user's ratings, keyed by item ID (empty if the user is unknown).
+     */
+    public SparseVector getUserRatingVector(long user) {
+        ensureIndex();
+        return userTable.getVector(user);
+    }
+
+    /**
+     * Get an item's rating vector.
+     * @param item The item ID.
+     * @return The item's ratings, keyed by user ID (empty if the item is unknown).
+     */
+    public SparseVector getItemRatingVector(long item) {
+        ensureIndex();
+        return itemTable.getVector(item);
+    }
+
+    /**
+     * Get a user's rating vector from a user event DAO, using the index if the DAO is a rating
+     * index.
+     * @param dao The user event DAO.
+     * @param user The user ID.
+     * @return The user's rating vector.
+     */
+    public static SparseVector userRatingVector(UserEventDAO dao, long user) {
+        if (dao instanceof RatingIndexDAO) {
+            return ((RatingIndexDAO) dao).getUserRatingVector(user);
+        }
+        UserHistory<Rating> history = dao.getEventsForUser(user, Rating.class);
+        if (history == null) {
+            history = History.forUser(user);
+        }
+        return RatingVectorUserHistorySummarizer.makeRatingVector(history);
+    }
+
+    /**
+     * Get an item's rating vector from an item event DAO, using the index if the DAO is a rating
+     * index.  Otherwise the item's ratings are replayed in timestamp order, so the vector holds
+     * each user's most recent rating, as the index's vectors do.
+     * @param dao The item event DAO.
+     * @param item The item ID.
+     * @return The item's ratings, keyed by user ID.
+     */
+    public static SparseVector itemRatingVector(ItemEventDAO dao, long item) {
+        if (dao instanceof RatingIndexDAO) {
+            return ((RatingIndexDAO) dao).getItemRatingVector(item);
+        }
+        List<Rating> ratings = dao.getEventsForItem(item, Rating.class);
+        if (ratings == null) {
+            return SparseVector.empty();
+        }
+        ratings = new ArrayList<Rating>(ratings);
+        // a stable sort, so equal timestamps stay in the DAO's order
+        Collections.sort(ratings, Ratings.ITEM_TIME_COMPARATOR);
+        LongArrayList users = new LongArrayList(ratings.size());
+        for (Rating r: ratings) {
+            users.add(r.getUserId());
+        }
+        MutableSparseVector vector = MutableSparseVector.create(LongUtils.packedSet(users));
+        for (Rating r: ratings) {
+            Preference p = r.getPreference();
+            if (p != null) {
+                vector.set(p.getUserId(), p.getValue());
+            } else {
+                vector.unset(r.getUserId());
+            }
+        }
+        return vector.freeze();
+    }
+
+    @Override
+    public Cursor<Event> streamEvents() {
+        return streamEvents(Event.class, SortOrder.ANY);
+    }
+
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type) {
+        return streamEvents(type, SortOrder.ANY);
+    }
+
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type, SortOrder order) {
+        ensureIndex();
+        if (!indexes(type)) {
+            return baseDao.streamEvents(type, order);
+        }
+        switch (order) {
+        case USER:
+            return new EventCursor<E>(userTable, type);
+        case ITEM:
+            return new EventCursor<E>(itemTable, type);
+        default:
+            return baseDao.streamEvents(type, order);
+        }
+    }
+
+    @Override
+    public Cursor<UserHistory<Event>> streamEventsByUser() {
+        ensureIndex();
+        if (!indexes(Event.class)) {
+            return getUserFallback().streamEventsByUser();
+        }
+        return new AbstractCursor<UserHistory<Event>>() {
+            private int row = 0;
+
+            @Override
+            public int getRowCount() {
+                return userTable.size();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return row < userTable.size();
+            }
+
+            @Override
+            public UserHistory<Event> next() {
+                if (row >= userTable.size()) {
+                    throw new NoSuchElementException();
+                }
+                long user = userTable.getId(row);
+                List<Event> events = userTable.getEvents(row, Event.class);
+                row++;
+                return History.forUser(user, events);
+            }
+        };
+    }
+
+    @Override
+    public UserHistory<Event> getEventsForUser(long user) {
+        return getEventsForUser(user, Event.class);
+    }
+
+    @Override
+    public <E extends Event> UserHistory<E> getEventsForUser(long user, Class<E> type) {
+        ensureIndex();
+        if (!indexes(type)) {
+            return getUserFallback().getEventsForUser(user, type);
+        }
+        int row = userTable.getRow(user);
+        if (row < 0) {
+            return null;
+        }
+        return History.forUser(user, userTable.getEvents(row, type));
+    }
+
+    @Override
+    public List<Event> getEventsForItem(long item) {
+        return getEventsForItem(item, Event.class);
+    }
+
+    @Override
+    public <E extends Event> List<E> getEventsForItem(long item, Class<E> type) {
+        ensureIndex();
+        if (!indexes(type)) {
+            return getItemFallback().getEventsForItem(item, type);
+        }
+        int row = itemTable.getRow(item);
+        if (row < 0) {
+            return null;
+        }
+        return itemTable.getEvents(row, type);
+    }
+
+    @Override
+    public LongSet getUsersForItem(long item) {
+        ensureIndex();
+        int row = itemTable.getRow(item);
+        if (row < 0) {
+            return LongSets.EMPTY_SET;
+        }
+        return itemTable.getVector(row).keySet();
+    }
+
+    /**
+     * Rating events grouped by one key (users or items), with the rows sorted by key.  The events
+     * are stored in parallel arrays, row by row and in timestamp order within each row; row
+     * <i>r</i> holds positions {@code starts[r]} to {@code starts[r+1]}.  A second set of
+     * offsets lists, for each row, the positions of the events that make up its rating vector,
+     * sorted by the other key.
+     */
+    private static class RatingTable {
+        private final Long2IntOpenHashMap rowIndex;
+        private final long[] rowIds;
+        private final boolean byUser;
+        private final int[] starts;
+        private final long[] keys;
+        private final double[] values;
+        private final long[] times;
+        private final Int2ObjectMap<Rating> unrates;
+        private final int[] vectorStarts;
+        private final int[] vectorEvents;
+
+        RatingTable(boolean users, int n, long[] rowKeys, final long[] colKeys, double[] vals,
+                    final long[] timestamps, Int2ObjectMap<Rating> unrateEvents) {
+            byUser = users;
+            LongOpenHashSet keySet = new LongOpenHashSet();
+            for (int i = 0; i < n; i++) {
+                keySet.add(rowKeys[i]);
+            }
+            rowIds = keySet.toLongArray();
+            LongArrays.quickSort(rowIds);
+            int nrows = rowIds.length;
+            rowIndex = new Long2IntOpenHashMap(nrows);
+            rowIndex.defaultReturnValue(-1);
+            for (int r = 0; r < nrows; r++) {
+                rowIndex.put(rowIds[r], r);
+            }
+
+            // group the events by row, in stream order (a counting sort)
+            starts = new int[nrows + 1];
+            int[] rowOf = new int[n];
+            for (int i = 0; i < n; i++) {
+                rowOf[i] = rowIndex.get(rowKeys[i]);
+                starts[rowOf[i] + 1]++;
+            }
+            for (int r = 0; r < nrows; r++) {
+                starts[r + 1] += starts[r];
+            }
+            final int[] order = new int[n];
+            int[] fill = new int[nrows];
+            for (int i = 0; i < n; i++) {
+                order[starts[rowOf[i]] + fill[rowOf[i]]++] = i;
+            }
+            // sort each row by timestamp; equal timestamps stay in stream order
+            for (int r = 0; r < nrows; r++) {
+                IntArrays.quickSort(order, starts[r], starts[r + 1], new AbstractIntComparator() {
+                    @Override
+                    public int compare(int i1, int i2) {
+                        if (timestamps[i1] != timestamps[i2]) {
+                            return timestamps[i1] < timestamps[i2] ? -1 : 1;
+                        }
+                        return i1 < i2 ? -1 : (i1 > i2 ? 1 : 0);
+                    }
+                });
+            }
+
+            keys = new long[n];
+            values = new double[n];
+            times = new long[n];
+            unrates = new Int2ObjectOpenHashMap<Rating>();
+            for (int pos = 0; pos < n; pos++) {
+                int i = order[pos];
+                keys[pos] = colKeys[i];
+                values[pos] = vals[i];
+                times[pos] = timestamps[i];
+                if (Double.isNaN(vals[i])) {
+                    unrates.put(pos, unrateEvents.get(i));
+                }
+            }
+
+            // the last event of each key in a row decides its rating
+            vectorStarts = new int[nrows + 1];
+            IntArrayList entries = new IntArrayList(n);
+            int[] byKey = new int[n];
+            for (int pos = 0; pos < n; pos++) {
+                byKey[pos] = pos;
+            }
+            for (int r = 0; r < nrows; r++) {
+                int end = starts[r + 1];
+                IntArrays.quickSort(byKey, starts[r], end, new AbstractIntComparator() {
+                    @Override
+                    public int compare(int p1, int p2) {
+                        if (keys[p1] != keys[p2]) {
+                            return keys[p1] < keys[p2] ? -1 : 1;
+                        }
+                        return p1 < p2 ? -1 : (p1 > p2 ? 1 : 0);
+                    }
+                });
+                for (int j = starts[r]; j < end; j++) {
+                    int pos = byKey[j];
+                    boolean last = j + 1 == end || keys[byKey[j + 1]] != keys[pos];
+                    if (last && !Double.isNaN(values[pos])) {
+                        entries.add(pos);
+                    }
+                }
+                vectorStarts[r + 1] = entries.size();
+            }
+            vectorEvents = entries.toIntArray();
+        }
+
+        int size() {
+            return rowIds.length;
+        }
+
+        int getRow(long id) {
+            return rowIndex.get(id);
+        }
+
+        long getId(int row) {
+            return rowIds[row];
+        }
+
+        /**
+         * Copy a row's rating vector out of its events.
+         */
+        ImmutableSparseVector getVector(int row) {
+            int start = vectorStarts[row];
+            int size = vectorStarts[row + 1] - start;
+            long[] vkeys = new long[size];
+            double[] vvals = new double[size];
+            for (int j = 0; j < size; j++) {
+                int pos = vectorEvents[start + j];
+                vkeys[j] = keys[pos];
+                vvals[j] = values[pos];
+            }
+            return MutableSparseVector.wrap(vkeys, vvals).freeze();
+        }
+
+        SparseVector getVector(long id) {
+            int row = rowIndex.get(id);
+            if (row < 0) {
+                return SparseVector.empty();
+            } else {
+                return getVector(row);
+            }
+        }
+
+        /**
+         * Create the events of a row of some type, in timestamp order.
+         */
+        <E extends Event> List<E> getEvents(int row, Class<E> type) {
+            long id = rowIds[row];
+            int end = starts[row + 1];
+            List<E> events = new ArrayList<E>(end - starts[row]);
+            for (int pos = starts[row]; pos < end; pos++) {
+                Rating evt;
+                if (Double.isNaN(values[pos])) {
+                    evt = unrates.get(pos);
+                } else {
+                    long user = byUser ? id : keys[pos];
+                    long item = byUser ? keys[pos] : id;
+                    evt = Ratings.make(user, item, values[pos], times[pos]);
+                }
+                if (type.isInstance(evt)) {
+                    events.add(type.cast(evt));
+                }
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Cursor over the events of every row of a rating table, in row order.
+     */
+    private static class EventCursor<E extends Event> extends AbstractCursor<E> {
+        private final RatingTable table;
+        private final Class<E> type;
+        private int row = 0;
+        private List<E> rowEvents = Collections.emptyList();
+        private int pos = 0;
+
+        EventCursor(RatingTable tbl, Class<E> type) {
+            table = tbl;
+            this.type = type;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pos >= rowEvents.size() && row < table.size()) {
+                rowEvents = table.getEvents(row, type);
+                row++;
+                pos = 0;
+            }
+            return pos < rowEvents.size();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return rowEvents.get(pos++);
+        }
+    }
+}
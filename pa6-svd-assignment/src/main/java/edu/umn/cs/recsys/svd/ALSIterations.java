@@ -0,0 +1,21 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of alternating iterations made when training factors by
+ * alternating least squares.  Each iteration solves every item and then every user exactly, so
+ * far fewer are needed than {@linkplain TrainingEpochs gradient descent epochs}.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(10)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ALSIterations {
+}
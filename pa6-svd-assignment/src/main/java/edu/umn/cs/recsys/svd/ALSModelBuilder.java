@@ -0,0 +1,185 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.baseline.BaselineScorer;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Model builder that trains user and item factors with alternating least squares.  Each
+ * iteration fixes the user factors and solves every item's regularized least-squares problem
+ * over its observed residuals, then does the same for the users.  Solving the users last makes
+ * each trained user row the solution of the same problem that
+ * {@linkplain SVDModel#foldIn(org.grouplens.lenskit.vectors.SparseVector) folding in} solves,
+ * so folding a user's training ratings back in reproduces their row.
+ * <p>
+ * The problems within a half-step are independent, so they are solved in parallel.  The rows
+ * are split into fixed-size chunks that are submitted to a thread pool, rather than forked
+ * recursively, since the build targets Java 6, which has no fork-join pool; the chunks are
+ * small enough to balance the uneven row lengths across threads.  Each chunk allocates its own
+ * {@linkplain NormalEquations workspace} for the <i>k</i>&times;<i>k</i> normal equations and
+ * reuses it for all of its rows, so no workspace outlives its task.  The number of iterations
+ * is set by {@link ALSIterations}.
+ * <p>
+ * The regularization of each row is scaled by its number of ratings.  The resulting model has
+ * unit feature weights.
+ */
+public class ALSModelBuilder implements Provider<SVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(ALSModelBuilder.class);
+    private static final long SEED = 0x5DEECE66DL;
+    private static final double INITIAL_SCALE = 0.1;
+    /**
+     * Number of rows solved by each task.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private final UserEventDAO userEventDAO;
+    private final UserDAO userDAO;
+    private final ItemDAO itemDAO;
+    private final ItemScorer baselineScorer;
+    private final int featureCount;
+    private final int iterations;
+    private final double regularization;
+    private final int threadCount;
+
+    /**
+     * Construct the model builder.
+     * @param uedao The user event DAO.
+     * @param udao The user DAO.
+     * @param idao The item DAO.
+     * @param baseline The baseline scorer (this will be used to compute means).
+     * @param nfeatures The number of latent features to train.
+     * @param niters The number of alternating iterations.
+     * @param reg The regularization term.
+     * @param nthreads The number of threads to solve with.
+     */
+    @Inject
+    public ALSModelBuilder(@Transient UserEventDAO uedao,
+                           @Transient UserDAO udao,
+                           @Transient ItemDAO idao,
+                           @Transient @BaselineScorer ItemScorer baseline,
+                           @LatentFeatureCount int nfeatures,
+                           @ALSIterations int niters,
+                           @RegularizationTerm double reg,
+                           @ThreadCount int nthreads) {
+        userEventDAO = uedao;
+        userDAO = udao;
+        itemDAO = idao;
+        baselineScorer = baseline;
+        featureCount = nfeatures;
+        iterations = niters;
+        regularization = reg;
+        threadCount = nthreads;
+    }
+
+    /**
+     * Train the factorization model.
+     *
+     * @return A factorization model trained by alternating least squares.
+     */
+    @Override
+    public SVDModel get() {
+        IdIndexMapping userMapping = IdIndexMapping.create(userDAO.getUserIds());
+        IdIndexMapping itemMapping = IdIndexMapping.create(itemDAO.getItemIds());
+        SparseResidualMatrix byUser =
+                SparseResidualMatrix.build(userEventDAO, userMapping, itemMapping, baselineScorer);
+        SparseResidualMatrix byItem = byUser.transpose();
+        int k = featureCount;
+
+        Random rng = new Random(SEED);
+        double[] userFactors = new double[byUser.getRowCount() * k];
+        double[] itemFactors = new double[byItem.getRowCount() * k];
+        for (int i = 0; i < userFactors.length; i++) {
+            userFactors[i] = INITIAL_SCALE * rng.nextGaussian();
+        }
+
+        int nthreads = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+        logger.info("training {} features on {} ratings for {} iterations with {} threads",
+                    new Object[]{k, byUser.getEntryCount(), iterations, nthreads});
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        try {
+            for (int iter = 0; iter < iterations; iter++) {
+                solveAll(executor, byItem, userFactors, itemFactors);
+                solveAll(executor, byUser, itemFactors, userFactors);
+                logger.debug("finished iteration {}", iter + 1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return SVDModel.trained(userMapping, itemMapping, userFactors, itemFactors, k,
+                                byUser.getRowHashes(), regularization);
+    }
+
+    /**
+     * Solve for every row's factors with the other side's factors fixed.
+     * @param executor The executor to run the solves on.
+     * @param matrix The residuals, with the rows to solve for as rows.
+     * @param fixed The fixed factors of the columns.
+     * @param out The array to receive the rows' factors.
+     */
+    private void solveAll(ExecutorService executor, final SparseResidualMatrix matrix,
+                          final double[] fixed, final double[] out) {
+        int nrows = matrix.getRowCount();
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int start = 0; start < nrows; start += CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + CHUNK_SIZE, nrows);
+            tasks.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    NormalEquations ws = new NormalEquations(featureCount);
+                    for (int row = from; row < to; row++) {
+                        solveRow(ws, matrix.rowColumns(row), matrix.rowValues(row), fixed, out, row);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> task: tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted training factors", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error training factors", e.getCause());
+        }
+    }
+
+    /**
+     * Solve one row's regularized least-squares problem
+     * {@code (Y^T Y + lambda n I) x = Y^T r} over its observed columns.
+     */
+    private void solveRow(NormalEquations ws, int[] cols, double[] vals, double[] fixed,
+                          double[] out, int row) {
+        int k = featureCount;
+        int n = cols.length;
+        int ostart = row * k;
+        if (n == 0) {
+            Arrays.fill(out, ostart, ostart + k, 0.0);
+            return;
+        }
+        ws.clear();
+        for (int e = 0; e < n; e++) {
+            ws.add(fixed, cols[e] * k, vals[e]);
+        }
+        System.arraycopy(ws.solve(regularization), 0, out, ostart, k);
+    }
+}
@@ -12,37 +12,52 @@ public enum BaselineMode {
     GLOBAL_MEAN {
         @Override
         public void configure(LenskitConfiguration config) {
-            config.within(SVDItemScorer.class)
-                  .bind(BaselineScorer.class,ItemScorer.class)
-                  .to(GlobalMeanRatingItemScorer.class);
+            for (Class<?> context: CONTEXTS) {
+                config.within(context)
+                      .bind(BaselineScorer.class,ItemScorer.class)
+                      .to(GlobalMeanRatingItemScorer.class);
+            }
         }
     },
     USER_MEAN {
         @Override
         public void configure(LenskitConfiguration config) {
-            config.within(SVDItemScorer.class)
-                  .bind(BaselineScorer.class,ItemScorer.class)
-                  .to(UserMeanItemScorer.class);
+            for (Class<?> context: CONTEXTS) {
+                config.within(context)
+                      .bind(BaselineScorer.class,ItemScorer.class)
+                      .to(UserMeanItemScorer.class);
+            }
         }
     },
     ITEM_MEAN {
         @Override
         public void configure(LenskitConfiguration config) {
-            config.within(SVDItemScorer.class)
-                  .bind(BaselineScorer.class,ItemScorer.class)
-                  .to(ItemMeanRatingItemScorer.class);
+            for (Class<?> context: CONTEXTS) {
+                config.within(context)
+                      .bind(BaselineScorer.class,ItemScorer.class)
+                      .to(ItemMeanRatingItemScorer.class);
+            }
         }
     },
     USER_ITEM_MEAN {
         @Override
         public void configure(LenskitConfiguration config) {
-            config.within(SVDItemScorer.class)
-                  .bind(BaselineScorer.class,ItemScorer.class)
-                  .to(UserMeanItemScorer.class);
-            config.within(SVDItemScorer.class)
-                  .bind(UserMeanBaseline.class,ItemScorer.class)
-                  .to(ItemMeanRatingItemScorer.class);
+            for (Class<?> context: CONTEXTS) {
+                config.within(context)
+                      .bind(BaselineScorer.class,ItemScorer.class)
+                      .to(UserMeanItemScorer.class);
+                config.within(context)
+                      .bind(UserMeanBaseline.class,ItemScorer.class)
+                      .to(ItemMeanRatingItemScorer.class);
+            }
         }
     };
+
+    /**
+     * The components whose baseline is configured: the scorer, and the item index, whose
+     * offsets must come from the same baseline.
+     */
+    private static final Class<?>[] CONTEXTS = {SVDItemScorer.class, SVDItemIndexBuilder.class};
+
     public abstract void configure(LenskitConfiguration config);
 }
@@ -0,0 +1,52 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.lenskit.core.LenskitConfiguration;
+
+/**
+ * Factorization modes for the SVD recommender, selecting how the model is built.  Used by
+ * {@link SVDMain} to control configuration.
+ */
+public enum FactorizationMode {
+    /**
+     * Full decomposition of the dense residual matrix ({@link SVDModelBuilder}).
+     */
+    DENSE_SVD {
+        @Override
+        public void configure(LenskitConfiguration config) {
+            config.bind(SVDModel.class)
+                  .toProvider(SVDModelBuilder.class);
+        }
+    },
+    /**
+     * Truncated decomposition of the sparse residual matrix ({@link SparseSVDModelBuilder}).
+     */
+    SPARSE_SVD {
+        @Override
+        public void configure(LenskitConfiguration config) {
+            config.bind(SVDModel.class)
+                  .toProvider(SparseSVDModelBuilder.class);
+        }
+    },
+    /**
+     * Factors trained on the observed ratings by gradient descent ({@link SGDModelBuilder}).
+     */
+    SGD {
+        @Override
+        public void configure(LenskitConfiguration config) {
+            config.bind(SVDModel.class)
+                  .toProvider(SGDModelBuilder.class);
+        }
+    },
+    /**
+     * Factors trained on the observed ratings by alternating least squares
+     * ({@link ALSModelBuilder}).
+     */
+    ALS {
+        @Override
+        public void configure(LenskitConfiguration config) {
+            config.bind(SVDModel.class)
+                  .toProvider(ALSModelBuilder.class);
+        }
+    };
+    public abstract void configure(LenskitConfiguration config);
+}
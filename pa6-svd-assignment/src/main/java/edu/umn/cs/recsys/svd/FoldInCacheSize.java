@@ -0,0 +1,19 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of folded-in user vectors the SVD item scorer caches.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(10000)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FoldInCacheSize {
+}
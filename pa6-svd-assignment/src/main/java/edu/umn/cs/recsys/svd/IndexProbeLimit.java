@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of items the SVD item index scores per query.  0 scores as
+ * many as needed for exact results.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface IndexProbeLimit {
+}
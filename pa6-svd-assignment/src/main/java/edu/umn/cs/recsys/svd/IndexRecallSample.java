@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of users on which to measure the recall of the SVD item
+ * index against exact search when it is built.  0 skips the measurement.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface IndexRecallSample {
+}
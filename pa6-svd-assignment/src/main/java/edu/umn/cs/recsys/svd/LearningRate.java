@@ -0,0 +1,19 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the learning rate of stochastic gradient descent.
+ */
+@Documented
+@Qualifier
+@Parameter(Double.class)
+@DefaultDouble(0.01)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LearningRate {
+}
@@ -0,0 +1,126 @@
+package edu.umn.cs.recsys.svd;
+
+import java.util.Arrays;
+
+/**
+ * Storage for the <i>k</i>&times;<i>k</i> normal equations of one row's regularized
+ * least-squares problem, {@code (Y^T Y + lambda n I) x = Y^T r}, where {@code Y} holds the
+ * factors of the row's <i>n</i> observed columns.  The system is solved in place by Cholesky
+ * decomposition, so a workspace can be reused for many rows without allocating.  It is used
+ * both to train factors by {@linkplain ALSModelBuilder alternating least squares} and to
+ * {@linkplain SVDModel#foldIn(org.grouplens.lenskit.vectors.SparseVector) fold in} users
+ * against trained factors.
+ */
+class NormalEquations {
+    final int size;
+    /**
+     * The row-major system matrix; only its lower triangle is used.
+     */
+    final double[] matrix;
+    /**
+     * The right-hand side, replaced by the solution.
+     */
+    final double[] vector;
+    private int count;
+
+    NormalEquations(int k) {
+        size = k;
+        matrix = new double[k * k];
+        vector = new double[k];
+    }
+
+    /**
+     * Clear the system to start a new row.
+     */
+    void clear() {
+        Arrays.fill(matrix, 0.0);
+        Arrays.fill(vector, 0.0);
+        count = 0;
+    }
+
+    /**
+     * Get the number of observations added since the system was cleared.
+     * @return The observation count.
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Add an observed value to the system.
+     * @param factors The array holding the column's factors.
+     * @param start The position of the column's factors in the array.
+     * @param value The observed value.
+     */
+    void add(double[] factors, int start, double value) {
+        int k = size;
+        double[] a = matrix;
+        for (int f = 0; f < k; f++) {
+            double yf = factors[start + f];
+            vector[f] += value * yf;
+            // accumulate the lower triangle only
+            for (int g = 0; g <= f; g++) {
+                a[f * k + g] += yf * factors[start + g];
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Regularize the system and solve it.  The regularization is scaled by the number of
+     * observations, as the factors are trained.
+     * @param regularization The regularization term.
+     * @return The solution vector (the workspace's {@link #vector}).
+     */
+    double[] solve(double regularization) {
+        int k = size;
+        double lambda = regularization * count;
+        for (int f = 0; f < k; f++) {
+            matrix[f * k + f] += lambda;
+        }
+        solve();
+        return vector;
+    }
+
+    /**
+     * Solve the system in place by Cholesky decomposition.  The lower triangle of the matrix
+     * is overwritten with its Cholesky factor and the vector with the solution.
+     */
+    void solve() {
+        int k = size;
+        double[] a = matrix;
+        double[] b = vector;
+        for (int j = 0; j < k; j++) {
+            double d = a[j * k + j];
+            for (int p = 0; p < j; p++) {
+                d -= a[j * k + p] * a[j * k + p];
+            }
+            // the regularization keeps the system positive definite
+            d = Math.sqrt(Math.max(d, 1.0e-12));
+            a[j * k + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                double s = a[i * k + j];
+                for (int p = 0; p < j; p++) {
+                    s -= a[i * k + p] * a[j * k + p];
+                }
+                a[i * k + j] = s / d;
+            }
+        }
+        // forward substitution: L y = b
+        for (int i = 0; i < k; i++) {
+            double s = b[i];
+            for (int p = 0; p < i; p++) {
+                s -= a[i * k + p] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+        // back substitution: L^T x = y
+        for (int i = k - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int p = i + 1; p < k; p++) {
+                s -= a[p * k + i] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+    }
+}
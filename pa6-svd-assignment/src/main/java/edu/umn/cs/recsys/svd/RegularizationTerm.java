@@ -0,0 +1,19 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the regularization applied to the factors when training.
+ */
+@Documented
+@Qualifier
+@Parameter(Double.class)
+@DefaultDouble(0.02)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RegularizationTerm {
+}
@@ -0,0 +1,157 @@
+package edu.umn.cs.recsys.svd;
+
+import com.google.common.primitives.Ints;
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.baseline.BaselineScorer;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+
+/**
+ * Model builder that trains user and item factors with stochastic gradient descent.  Unlike
+ * {@link SVDModelBuilder}, it fits only the observed ratings (minus their baselines) rather than
+ * a zero-filled matrix: each epoch visits the ratings in a random order and moves the user and
+ * item factors along the gradient of the regularized squared error.  Training time is linear
+ * in the number of ratings.  The feature count is capped at the number of users or items,
+ * whichever is smaller.  The resulting model has unit feature weights.
+ */
+public class SGDModelBuilder implements Provider<SVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(SGDModelBuilder.class);
+    private static final long SEED = 0x5DEECE66DL;
+    private static final double INITIAL_SCALE = 0.1;
+
+    private final UserEventDAO userEventDAO;
+    private final UserDAO userDAO;
+    private final ItemDAO itemDAO;
+    private final ItemScorer baselineScorer;
+    private final int featureCount;
+    private final int epochs;
+    private final double learningRate;
+    private final double regularization;
+
+    /**
+     * Construct the model builder.
+     * @param uedao The user event DAO.
+     * @param udao The user DAO.
+     * @param idao The item DAO.
+     * @param baseline The baseline scorer (this will be used to compute means).
+     * @param nfeatures The number of latent features to train.
+     * @param nepochs The number of passes over the ratings.
+     * @param lrate The learning rate.
+     * @param reg The regularization term.
+     */
+    @Inject
+    public SGDModelBuilder(@Transient UserEventDAO uedao,
+                           @Transient UserDAO udao,
+                           @Transient ItemDAO idao,
+                           @Transient @BaselineScorer ItemScorer baseline,
+                           @LatentFeatureCount int nfeatures,
+                           @TrainingEpochs int nepochs,
+                           @LearningRate double lrate,
+                           @RegularizationTerm double reg) {
+        userEventDAO = uedao;
+        userDAO = udao;
+        itemDAO = idao;
+        baselineScorer = baseline;
+        featureCount = nfeatures;
+        epochs = nepochs;
+        learningRate = lrate;
+        regularization = reg;
+    }
+
+    /**
+     * Train the factorization model.
+     *
+     * @return A factorization model trained by gradient descent.
+     */
+    @Override
+    public SVDModel get() {
+        IdIndexMapping userMapping = IdIndexMapping.create(userDAO.getUserIds());
+        IdIndexMapping itemMapping = IdIndexMapping.create(itemDAO.getItemIds());
+        SparseResidualMatrix matrix =
+                SparseResidualMatrix.build(userEventDAO, userMapping, itemMapping, baselineScorer);
+        int nusers = matrix.getRowCount();
+        int nitems = matrix.getColumnCount();
+        // there cannot be more independent features than users or items
+        int k = Math.min(featureCount, Math.min(nusers, nitems));
+
+        // flatten the ratings so they can be visited in a random order
+        int nratings = Ints.checkedCast(matrix.getEntryCount());
+        int[] users = new int[nratings];
+        int[] items = new int[nratings];
+        double[] residuals = new double[nratings];
+        int n = 0;
+        for (int u = 0; u < nusers; u++) {
+            int[] cols = matrix.rowColumns(u);
+            double[] vals = matrix.rowValues(u);
+            for (int e = 0; e < cols.length; e++) {
+                users[n] = u;
+                items[n] = cols[e];
+                residuals[n] = vals[e];
+                n++;
+            }
+        }
+
+        Random rng = new Random(SEED);
+        double[] userFactors = new double[nusers * k];
+        double[] itemFactors = new double[nitems * k];
+        for (int i = 0; i < userFactors.length; i++) {
+            userFactors[i] = INITIAL_SCALE * rng.nextGaussian();
+        }
+        for (int i = 0; i < itemFactors.length; i++) {
+            itemFactors[i] = INITIAL_SCALE * rng.nextGaussian();
+        }
+
+        int[] order = new int[nratings];
+        for (int i = 0; i < nratings; i++) {
+            order[i] = i;
+        }
+        logger.info("training {} features on {} ratings for {} epochs",
+                    new Object[]{k, nratings, epochs});
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            shuffle(order, rng);
+            double sse = 0;
+            for (int r: order) {
+                int ustart = users[r] * k;
+                int istart = items[r] * k;
+                double pred = 0;
+                for (int f = 0; f < k; f++) {
+                    pred += userFactors[ustart + f] * itemFactors[istart + f];
+                }
+                double err = residuals[r] - pred;
+                sse += err * err;
+                for (int f = 0; f < k; f++) {
+                    double uf = userFactors[ustart + f];
+                    double itf = itemFactors[istart + f];
+                    userFactors[ustart + f] += learningRate * (err * itf - regularization * uf);
+                    itemFactors[istart + f] += learningRate * (err * uf - regularization * itf);
+                }
+            }
+            logger.debug("epoch {}: training RMSE {}", epoch + 1,
+                         nratings > 0 ? Math.sqrt(sse / nratings) : 0);
+        }
+
+        return SVDModel.trained(userMapping, itemMapping, userFactors, itemFactors, k,
+                                matrix.getRowHashes(), regularization);
+    }
+
+    /**
+     * Shuffle an array in place (Fisher-Yates).
+     */
+    static void shuffle(int[] array, Random rng) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+}
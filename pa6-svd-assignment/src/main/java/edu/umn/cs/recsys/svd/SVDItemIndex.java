@@ -0,0 +1,265 @@
+package edu.umn.cs.recsys.svd;
+
+import com.google.common.base.Preconditions;
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+import org.grouplens.lenskit.scored.ScoredId;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Maximum inner product index over the item factors of an {@link SVDModel}.  It finds the items
+ * with the highest {@code user * item + offset} without scoring the whole catalog, where the
+ * offset is the item's part of the baseline.  Each item is stored as the vector
+ * {@code [item, offset]}, and a query as {@code [user, 1]}.
+ * <p>
+ * The items are sorted by decreasing norm and cut into buckets.  By the Cauchy-Schwarz
+ * inequality no item scores more than the product of its norm and the query's norm, so once
+ * the top <i>n</i> items found so far all beat that bound for a bucket, the search stops: the
+ * remaining buckets hold smaller norms.  Each bucket also keeps the per-feature minimum and
+ * maximum of its items, whose bounding box gives a second bound that skips buckets pointing
+ * away from the query.  The search is exact unless a probe limit caps the number of items
+ * scored per query.
+ */
+@Shareable
+@DefaultProvider(SVDItemIndexBuilder.class)
+public class SVDItemIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int dimension;
+    private final int bucketSize;
+    private final int probeLimit;
+    private final long[] itemIds;
+    private final double[] vectors;
+    private final double[] norms;
+    private final double[] bucketMin;
+    private final double[] bucketMax;
+
+    /**
+     * Build an index.
+     * @param ids The item IDs.
+     * @param factors The row-major item factors, one row per item ID.
+     * @param k The number of features.
+     * @param offsets The item offsets, one per item ID.  Only their differences matter.
+     * @param nbucket The number of items per bucket.
+     * @param nprobe The number of items to score per query (0 for exact search).
+     */
+    SVDItemIndex(long[] ids, double[] factors, int k, double[] offsets, int nbucket, int nprobe) {
+        Preconditions.checkArgument(factors.length == ids.length * k,
+                                    "item matrix has incorrect size");
+        Preconditions.checkArgument(offsets.length == ids.length,
+                                    "offset vector has incorrect size");
+        Preconditions.checkArgument(nbucket > 0, "bucket size must be positive");
+        Preconditions.checkArgument(nprobe >= 0, "probe limit must not be negative");
+        int n = ids.length;
+        dimension = k + 1;
+        bucketSize = nbucket;
+        probeLimit = nprobe;
+
+        // center the offsets to keep the norms, and thus the bounds, tight
+        double mean = 0;
+        for (double o: offsets) {
+            mean += o;
+        }
+        mean = n > 0 ? mean / n : 0;
+        final double[] fullNorms = new double[n];
+        for (int i = 0; i < n; i++) {
+            double o = offsets[i] - mean;
+            double sq = o * o;
+            for (int f = 0; f < k; f++) {
+                double v = factors[i * k + f];
+                sq += v * v;
+            }
+            fullNorms[i] = Math.sqrt(sq);
+        }
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, new IntComparator() {
+            @Override
+            public int compare(int i, int j) {
+                return Double.compare(fullNorms[j], fullNorms[i]);
+            }
+
+            @Override
+            public int compare(Integer i, Integer j) {
+                return compare(i.intValue(), j.intValue());
+            }
+        });
+
+        itemIds = new long[n];
+        vectors = new double[n * dimension];
+        norms = new double[n];
+        for (int pos = 0; pos < n; pos++) {
+            int i = order[pos];
+            itemIds[pos] = ids[i];
+            norms[pos] = fullNorms[i];
+            System.arraycopy(factors, i * k, vectors, pos * dimension, k);
+            vectors[pos * dimension + k] = offsets[i] - mean;
+        }
+
+        int nbuckets = (n + bucketSize - 1) / bucketSize;
+        bucketMin = new double[nbuckets * dimension];
+        bucketMax = new double[nbuckets * dimension];
+        for (int b = 0; b < nbuckets; b++) {
+            int bstart = b * dimension;
+            for (int pos = b * bucketSize; pos < bucketEnd(b); pos++) {
+                int vstart = pos * dimension;
+                for (int f = 0; f < dimension; f++) {
+                    double v = vectors[vstart + f];
+                    if (pos == b * bucketSize || v < bucketMin[bstart + f]) {
+                        bucketMin[bstart + f] = v;
+                    }
+                    if (pos == b * bucketSize || v > bucketMax[bstart + f]) {
+                        bucketMax[bstart + f] = v;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of indexed items.
+     * @return The number of items.
+     */
+    public int getItemCount() {
+        return itemIds.length;
+    }
+
+    /**
+     * Get the number of latent features of the indexed items.
+     * @return The number of features.
+     */
+    public int getFeatureCount() {
+        return dimension - 1;
+    }
+
+    /**
+     * Get the number of items scored per query.
+     * @return The probe limit, or 0 if searches are exact.
+     */
+    public int getProbeLimit() {
+        return probeLimit;
+    }
+
+    /**
+     * Find the items with the highest inner products with a user vector.
+     * @param user The user's weighted feature vector (as in {@link SVDModel#getUserFactors()}).
+     * @param n The number of items to find.
+     * @param exclude Items to skip, or {@code null}.
+     * @return The items, sorted by decreasing score.  The scores are the inner products plus
+     *         the centered item offsets, so they differ from predictions by a per-user constant.
+     */
+    public List<ScoredId> search(double[] user, int n, @Nullable LongSet exclude) {
+        TopNSelector selector = new TopNSelector(n);
+        search(user, exclude, selector, probeLimit);
+        return selector.finishList();
+    }
+
+    /**
+     * Search the index into a selector.
+     * @param user The user's weighted feature vector.
+     * @param exclude Items to skip, or {@code null}.
+     * @param selector The selector to receive the items.
+     * @param nprobe The number of items to score (0 for exact search).
+     * @return The number of items scored.
+     */
+    int search(double[] user, @Nullable LongSet exclude, TopNSelector selector, int nprobe) {
+        int k = dimension - 1;
+        Preconditions.checkArgument(user.length == k, "user vector has incorrect size");
+        Preconditions.checkArgument(nprobe >= 0, "probe limit must not be negative");
+        double[] query = new double[dimension];
+        System.arraycopy(user, 0, query, 0, k);
+        query[k] = 1;
+        double qnorm = 0;
+        for (double q: query) {
+            qnorm += q * q;
+        }
+        qnorm = Math.sqrt(qnorm);
+
+        int nbuckets = bucketMin.length / dimension;
+        int scored = 0;
+        for (int b = 0; b < nbuckets; b++) {
+            if (nprobe > 0 && scored >= nprobe) {
+                break;
+            }
+            int first = b * bucketSize;
+            if (selector.isFull()) {
+                // an item scoring equal to the threshold may still win on its ID
+                double threshold = selector.minScore();
+                if (qnorm * norms[first] < threshold) {
+                    // every remaining item has a smaller norm
+                    break;
+                }
+                if (boxBound(query, b) < threshold) {
+                    continue;
+                }
+            }
+            int end = bucketEnd(b);
+            for (int pos = first; pos < end; pos++) {
+                if (selector.isFull() && qnorm * norms[pos] < selector.minScore()) {
+                    break;
+                }
+                long item = itemIds[pos];
+                if (exclude != null && exclude.contains(item)) {
+                    continue;
+                }
+                int vstart = pos * dimension;
+                double dot = 0;
+                for (int f = 0; f < dimension; f++) {
+                    dot += query[f] * vectors[vstart + f];
+                }
+                selector.put(item, dot);
+                scored++;
+            }
+        }
+        return scored;
+    }
+
+    /**
+     * Find the items with the highest inner products by scoring every item.
+     * @param user The user's weighted feature vector.
+     * @param exclude Items to skip, or {@code null}.
+     * @param selector The selector to receive the items.
+     */
+    void scanAll(double[] user, @Nullable LongSet exclude, TopNSelector selector) {
+        int k = dimension - 1;
+        for (int pos = 0; pos < itemIds.length; pos++) {
+            long item = itemIds[pos];
+            if (exclude != null && exclude.contains(item)) {
+                continue;
+            }
+            int vstart = pos * dimension;
+            double dot = vectors[vstart + k];
+            for (int f = 0; f < k; f++) {
+                dot += user[f] * vectors[vstart + f];
+            }
+            selector.put(item, dot);
+        }
+    }
+
+    /**
+     * Bound the inner product of a query with any item in a bucket, using the bucket's
+     * bounding box.
+     */
+    private double boxBound(double[] query, int bucket) {
+        int bstart = bucket * dimension;
+        double bound = 0;
+        for (int f = 0; f < dimension; f++) {
+            double q = query[f];
+            bound += q * (q >= 0 ? bucketMax[bstart + f] : bucketMin[bstart + f]);
+        }
+        return bound;
+    }
+
+    private int bucketEnd(int bucket) {
+        return Math.min((bucket + 1) * bucketSize, itemIds.length);
+    }
+}
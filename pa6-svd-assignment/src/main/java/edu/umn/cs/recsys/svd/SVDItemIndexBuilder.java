@@ -0,0 +1,192 @@
+package edu.umn.cs.recsys.svd;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.baseline.BaselineScorer;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+
+/**
+ * Builds the {@link SVDItemIndex} over a model's item factors.  The item offsets are the
+ * scores of the items by the baseline scorer the SVD item scorer uses, for an arbitrary user.
+ * <p>
+ * This assumes the baseline is additive: a user term plus an item term, as all the baselines
+ * in {@link BaselineMode} are.  The user term is then the same for every item, so the offsets
+ * rank items exactly as the baseline does for any user, and the index ranks them as the
+ * scorer does.  A baseline whose item effects depend on the user would make the index rank
+ * items by the wrong offsets, so the builder also scores the items for a few of the model's
+ * users and fails if their scores do not differ from the offsets by a constant.  The baseline
+ * must be bound for this builder as well as for the scorer; {@link BaselineMode} binds both.
+ * <p>
+ * If {@link IndexRecallSample} is set, the builder reports the index's recall@{@value
+ * #RECALL_LIST_SIZE} against scoring every item, and the fraction of items it scored, on a
+ * random sample of the model's users.
+ */
+public class SVDItemIndexBuilder implements Provider<SVDItemIndex> {
+    private static final Logger logger = LoggerFactory.getLogger(SVDItemIndexBuilder.class);
+    private static final long SEED = 0x5DEECE66DL;
+    /**
+     * The user to score the baseline item offsets for.  Any user will do for an additive
+     * baseline.
+     */
+    private static final long OFFSET_USER = Long.MIN_VALUE;
+    /**
+     * The recommendation list size at which recall is measured.
+     */
+    static final int RECALL_LIST_SIZE = 10;
+    /**
+     * The number of model users whose baseline scores are checked against the offsets.
+     */
+    private static final int ADDITIVE_CHECK_USERS = 3;
+    /**
+     * The largest deviation from a constant user term tolerated in the check.
+     */
+    private static final double ADDITIVE_TOLERANCE = 1.0e-6;
+
+    private final SVDModel model;
+    private final ItemScorer baselineScorer;
+    private final int bucketSize;
+    private final int probeLimit;
+    private final int recallSample;
+
+    /**
+     * Construct the index builder.
+     * @param m The SVD model.
+     * @param baseline The baseline scorer (used to compute the item offsets).
+     * @param nbucket The number of items per bucket.
+     * @param nprobe The number of items to score per query (0 for exact search).
+     * @param nsample The number of users to check recall on (0 for none).
+     */
+    @Inject
+    public SVDItemIndexBuilder(@Transient SVDModel m,
+                               @Transient @BaselineScorer ItemScorer baseline,
+                               @IndexBucketSize int nbucket,
+                               @IndexProbeLimit int nprobe,
+                               @IndexRecallSample int nsample) {
+        model = m;
+        baselineScorer = baseline;
+        bucketSize = nbucket;
+        probeLimit = nprobe;
+        recallSample = nsample;
+    }
+
+    @Override
+    public SVDItemIndex get() {
+        IdIndexMapping itemMapping = model.getItemIndMapping();
+        int nitems = itemMapping.size();
+        long[] ids = new long[nitems];
+        for (int i = 0; i < nitems; i++) {
+            ids[i] = itemMapping.getId(i);
+        }
+        MutableSparseVector baselines = MutableSparseVector.create(ids);
+        baselineScorer.score(OFFSET_USER, baselines);
+        double[] offsets = new double[nitems];
+        for (int i = 0; i < nitems; i++) {
+            offsets[i] = baselines.get(ids[i], 0.0);
+        }
+        checkAdditive(ids, offsets);
+
+        SVDItemIndex index = new SVDItemIndex(ids, model.getItemFactors(), model.getFeatureCount(),
+                                              offsets, bucketSize, probeLimit);
+        logger.info("indexed {} items in buckets of {}", nitems, bucketSize);
+        if (recallSample > 0) {
+            measureRecall(index, model, RECALL_LIST_SIZE, recallSample);
+        }
+        return index;
+    }
+
+    /**
+     * Check that the baseline is additive: for each of a few of the model's users, the
+     * baseline scores must differ from the offsets by the same amount for every item.
+     * @param ids The item IDs.
+     * @param offsets The item offsets.
+     * @throws IllegalStateException if a user's scores are not the offsets plus a constant.
+     */
+    private void checkAdditive(long[] ids, double[] offsets) {
+        if (ids.length == 0) {
+            return;
+        }
+        IdIndexMapping userMapping = model.getUserIndexMapping();
+        int nusers = Math.min(ADDITIVE_CHECK_USERS, userMapping.size());
+        MutableSparseVector scores = MutableSparseVector.create(ids);
+        for (int u = 0; u < nusers; u++) {
+            long user = userMapping.getId(u);
+            scores.clear();
+            baselineScorer.score(user, scores);
+            double shift = scores.get(ids[0], 0.0) - offsets[0];
+            for (int i = 1; i < ids.length; i++) {
+                double diff = scores.get(ids[i], 0.0) - offsets[i] - shift;
+                if (Math.abs(diff) > ADDITIVE_TOLERANCE) {
+                    throw new IllegalStateException(
+                            "baseline is not additive: user " + user + "'s score for item " + ids[i]
+                            + " is off by " + diff + " from the item offset plus a user term");
+                }
+            }
+        }
+    }
+
+    /**
+     * Measure and log the recall of an index against scoring every item.
+     * @param index The index.
+     * @param model The model the index was built from.
+     * @param n The recommendation list size.
+     * @param nsample The number of users to sample.
+     * @return The fraction of the sampled users' exact top-<i>n</i> items that the index found.
+     */
+    static double measureRecall(SVDItemIndex index, SVDModel model, int n, int nsample) {
+        Random rng = new Random(SEED);
+        int k = model.getFeatureCount();
+        double[] userFactors = model.getUserFactors();
+        int nusers = userFactors.length / Math.max(k, 1);
+        int sample = Math.min(nsample, nusers);
+        // choose a sample of user rows (partial Fisher-Yates shuffle)
+        int[] order = new int[nusers];
+        for (int u = 0; u < nusers; u++) {
+            order[u] = u;
+        }
+        for (int s = 0; s < sample; s++) {
+            int j = s + rng.nextInt(nusers - s);
+            int tmp = order[s];
+            order[s] = order[j];
+            order[j] = tmp;
+        }
+
+        TopNSelector exact = new TopNSelector(n);
+        TopNSelector approx = new TopNSelector(n);
+        double[] user = new double[k];
+        long found = 0;
+        long total = 0;
+        long scored = 0;
+        for (int s = 0; s < sample; s++) {
+            System.arraycopy(userFactors, order[s] * k, user, 0, k);
+            index.scanAll(user, null, exact);
+            scored += index.search(user, null, approx, index.getProbeLimit());
+            LongSet approxIds = new LongOpenHashSet();
+            for (ScoredId item: approx.finishList()) {
+                approxIds.add(item.getId());
+            }
+            for (ScoredId item: exact.finishList()) {
+                total++;
+                if (approxIds.contains(item.getId())) {
+                    found++;
+                }
+            }
+        }
+        double recall = total == 0 ? 1.0 : (double) found / total;
+        double fraction = sample == 0 || index.getItemCount() == 0
+                ? 0.0 : (double) scored / ((long) sample * index.getItemCount());
+        logger.info("recall@{} on {} users: {} (scored {} of items)",
+                    new Object[]{n, sample, recall, fraction});
+        return recall;
+    }
+}
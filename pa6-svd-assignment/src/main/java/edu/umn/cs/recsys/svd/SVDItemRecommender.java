@@ -0,0 +1,73 @@
+package edu.umn.cs.recsys.svd;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Item recommender that finds a user's top items with the {@link SVDItemIndex} instead of
+ * scoring every item.  Only the items the index returns are scored by the item scorer, so the
+ * recommended scores are the usual predictions.  Recommendations restricted to a candidate set,
+ * or for all items, are scored as usual.  The item scorer must be an {@link SVDItemScorer},
+ * since the index only ranks items as that scorer does.
+ */
+public class SVDItemRecommender extends TopNItemRecommender {
+    private final SVDItemScorer svdScorer;
+    private final SVDItemIndex index;
+
+    /**
+     * Construct the recommender.
+     * @throws IllegalArgumentException if the scorer is not an {@link SVDItemScorer}.
+     */
+    @Inject
+    public SVDItemRecommender(UserEventDAO uedao, ItemDAO idao, ItemScorer scorer,
+                              SVDItemIndex idx) {
+        super(uedao, idao, scorer);
+        if (!(scorer instanceof SVDItemScorer)) {
+            throw new IllegalArgumentException("the SVD item index can only recommend for an "
+                                               + "SVDItemScorer, not " + scorer);
+        }
+        svdScorer = (SVDItemScorer) scorer;
+        index = idx;
+    }
+
+    @Override
+    protected List<ScoredId> recommend(long user, int n,
+                                       @Nullable LongSet candidates,
+                                       @Nullable LongSet exclude) {
+        if (candidates != null || n <= 0) {
+            return super.recommend(user, n, candidates, exclude);
+        }
+        if (exclude == null) {
+            exclude = getDefaultExcludes(user);
+        }
+        double[] vector = svdScorer.getUserVector(user);
+        if (vector == null) {
+            // no ratings: the baseline alone ranks the items
+            vector = new double[index.getFeatureCount()];
+        }
+        List<ScoredId> found = index.search(vector, n, exclude);
+        long[] ids = new long[found.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = found.get(i).getId();
+        }
+
+        MutableSparseVector scores = MutableSparseVector.create(ids);
+        scorer.score(user, scores);
+        TopNSelector selector = new TopNSelector(n);
+        for (VectorEntry e: scores.fast()) {
+            selector.put(e.getKey(), e.getValue());
+        }
+        return selector.finishList();
+    }
+}
@@ -1,14 +1,10 @@
 package edu.umn.cs.recsys.svd;
 
-import org.apache.commons.math3.linear.RealMatrix;
+import edu.umn.cs.recsys.dao.RatingIndexDAO;
 import org.grouplens.lenskit.ItemScorer;
 import org.grouplens.lenskit.baseline.BaselineScorer;
 import org.grouplens.lenskit.basic.AbstractItemScorer;
 import org.grouplens.lenskit.data.dao.UserEventDAO;
-import org.grouplens.lenskit.data.event.Rating;
-import org.grouplens.lenskit.data.history.History;
-import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
-import org.grouplens.lenskit.data.history.UserHistory;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
@@ -17,41 +13,45 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * SVD-based item scorer.
+ * SVD-based item scorer.  Users whose ratings have changed since the model was trained, and
+ * users not in the model at all, are {@linkplain SVDModel#foldIn(SparseVector) folded in} from
+ * their current ratings.  Folded-in vectors are cached, keyed by a hash of the ratings they
+ * were computed from, so any new, changed or removed rating refreshes them.
  */
 public class SVDItemScorer extends AbstractItemScorer {
     private static final Logger logger = LoggerFactory.getLogger(SVDItemScorer.class);
     private final SVDModel model;
     private final ItemScorer baselineScorer;
     private final UserEventDAO userEvents;
+    private final Map<Long, FoldedUser> foldInCache;
 
     /**
      * Construct an SVD item scorer using a model.
      * @param m The model to use when generating scores.
      * @param uedao A DAO to get user rating profiles.
      * @param baseline The baseline scorer (providing means).
+     * @param cacheSize The number of folded-in users to cache.
      */
     @Inject
     public SVDItemScorer(SVDModel m, UserEventDAO uedao,
-                         @BaselineScorer ItemScorer baseline) {
+                         @BaselineScorer ItemScorer baseline,
+                         @FoldInCacheSize final int cacheSize) {
         model = m;
         baselineScorer = baseline;
         userEvents = uedao;
-    }
+        foldInCache = Collections.synchronizedMap(new LinkedHashMap<Long, FoldedUser>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
 
-    private double prediction(long user, long item) {
-        double baseline = baselineScorer.score(user, item);
-        try {
-            RealMatrix userFeature = model.getUserVector(user);
-            RealMatrix featureWeights = model.getFeatureWeights();
-            RealMatrix itemFeature = model.getItemVector(item);
-            double product = userFeature.multiply(featureWeights).multiply(itemFeature.transpose()).getEntry(0, 0);
-            return baseline + product;
-        } catch (NullPointerException npe) {
-            return baseline;
-        }
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, FoldedUser> eldest) {
+                return size() > cacheSize;
+            }
+        });
     }
 
     /**
@@ -65,13 +65,129 @@ public class SVDItemScorer extends AbstractItemScorer {
      */
     @Override
     public void score(long user, @Nonnull MutableSparseVector scores) {
-        // TODO Score the items in the key domain of scores
+        // start from the baseline scores of the whole slate
+        baselineScorer.score(user, scores);
+
+        int k = model.getFeatureCount();
+        double[] userFactors;
+        int ustart;
+        SparseVector ratings = getUserRatingVector(user);
+        int urow = model.tryGetUserRow(user);
+        if (urow >= 0 && model.getUserRatingHash(urow) == SVDModel.ratingHash(ratings)) {
+            userFactors = model.getUserFactors();
+            ustart = urow * k;
+        } else {
+            // other users are folded in; those with no ratings get the baseline
+            userFactors = getFoldedInVector(user, ratings);
+            ustart = 0;
+            if (userFactors == null) {
+                return;
+            }
+        }
+        double[] itemFactors = model.getItemFactors();
+        int nitems = itemFactors.length / Math.max(k, 1);
+
+        if (scores.size() * 2 >= nitems) {
+            // large slate: multiply the item factors by the user vector in one pass
+            double[] products = new double[nitems];
+            multiply(itemFactors, k, userFactors, ustart, products);
+            for (VectorEntry e: scores.fast(VectorEntry.State.SET)) {
+                int irow = model.tryGetItemRow(e.getKey());
+                if (irow >= 0) {
+                    scores.set(e, e.getValue() + products[irow]);
+                }
+            }
+        } else {
+            for (VectorEntry e: scores.fast(VectorEntry.State.SET)) {
+                int irow = model.tryGetItemRow(e.getKey());
+                if (irow >= 0) {
+                    int istart = irow * k;
+                    double dot = 0;
+                    for (int f = 0; f < k; f++) {
+                        dot += userFactors[ustart + f] * itemFactors[istart + f];
+                    }
+                    scores.set(e, e.getValue() + dot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiply a row-major factor matrix by a vector.
+     * @param factors The factor matrix, with {@code k} columns.
+     * @param k The number of columns.
+     * @param vector The array holding the vector.
+     * @param vstart The position of the vector in its array.
+     * @param out The array to receive the product, one value per row.
+     */
+    static void multiply(double[] factors, int k, double[] vector, int vstart, double[] out) {
+        // copy the vector so the inner loop reads a small contiguous array
+        double[] v = new double[k];
+        System.arraycopy(vector, vstart, v, 0, k);
+        int nrows = out.length;
+        for (int r = 0, pos = 0; r < nrows; r++, pos += k) {
+            double dot = 0;
+            for (int f = 0; f < k; f++) {
+                dot += v[f] * factors[pos + f];
+            }
+            out[r] = dot;
+        }
+    }
+
+    /**
+     * Get a user's weighted feature vector, folding them in if they are not in the model or
+     * their ratings have changed since training.
+     * @param user The user ID.
+     * @return The user's feature vector (this must not be modified), or {@code null} if the
+     *         user needs folding in and has no ratings.
+     */
+    double[] getUserVector(long user) {
+        SparseVector ratings = getUserRatingVector(user);
+        int urow = model.tryGetUserRow(user);
+        if (urow >= 0 && model.getUserRatingHash(urow) == SVDModel.ratingHash(ratings)) {
+            int k = model.getFeatureCount();
+            double[] vector = new double[k];
+            System.arraycopy(model.getUserFactors(), urow * k, vector, 0, k);
+            return vector;
+        } else {
+            return getFoldedInVector(user, ratings);
+        }
+    }
 
-        for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
-            long item = e.getKey();
-            // TODO Set the scores
-            double score = prediction(user, item);
-            scores.set(e, score);
+    /**
+     * Get a user's feature vector by folding in their current ratings.  Vectors are cached, and
+     * recomputed when the hash of the user's ratings changes.
+     * @param user The user ID.
+     * @param ratings The user's current ratings.
+     * @return The user's weighted feature vector, or {@code null} if the user has no ratings.
+     */
+    private double[] getFoldedInVector(long user, SparseVector ratings) {
+        if (ratings.isEmpty()) {
+            return null;
+        }
+        long hash = SVDModel.ratingHash(ratings);
+        FoldedUser folded = foldInCache.get(user);
+        if (folded == null || folded.ratingHash != hash) {
+            MutableSparseVector residuals = ratings.mutableCopy();
+            MutableSparseVector baselines = MutableSparseVector.create(ratings.keySet());
+            baselineScorer.score(user, baselines);
+            residuals.subtract(baselines);
+            folded = new FoldedUser(hash, model.foldIn(residuals));
+            foldInCache.put(user, folded);
+        }
+        return folded.vector;
+    }
+
+    /**
+     * A folded-in user vector, with the hash of the ratings it was computed from.
+     */
+    private static class FoldedUser {
+        final long ratingHash;
+        final double[] vector;
+
+        FoldedUser(long hash, double[] v) {
+            ratingHash = hash;
+            vector = v;
         }
     }
 
@@ -81,11 +197,6 @@ public class SVDItemScorer extends AbstractItemScorer {
      * @return The ratings to retrieve.
      */
     private SparseVector getUserRatingVector(long user) {
-        UserHistory<Rating> history = userEvents.getEventsForUser(user, Rating.class);
-        if (history == null) {
-            history = History.forUser(user);
-        }
-
-        return RatingVectorUserHistorySummarizer.makeRatingVector(history);
+        return RatingIndexDAO.userRatingVector(userEvents, user);
     }
 }
@@ -3,13 +3,16 @@ package edu.umn.cs.recsys.svd;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import edu.umn.cs.recsys.dao.*;
+import org.grouplens.lenskit.ItemRecommender;
 import org.grouplens.lenskit.ItemScorer;
 import org.grouplens.lenskit.RecommenderBuildException;
 import org.grouplens.lenskit.core.LenskitConfiguration;
 import org.grouplens.lenskit.core.LenskitRecommender;
 import org.grouplens.lenskit.data.dao.EventDAO;
 import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.ItemEventDAO;
 import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +47,7 @@ public class SVDMain {
      */
     public static SVDMain initialize(String[] args) {
         BaselineMode baselineMode = BaselineMode.GLOBAL_MEAN;
+        FactorizationMode factorizationMode = FactorizationMode.DENSE_SVD;
         Map<Long,Set<Long>> toScore = Maps.newHashMap();
         for (String arg: args) {
             logger.debug("parsing argument: {}", arg);
@@ -55,6 +59,14 @@ public class SVDMain {
                 baselineMode = BaselineMode.ITEM_MEAN;
             } else if (arg.equals("--user-item-mean")) {
                 baselineMode = BaselineMode.USER_ITEM_MEAN;
+            } else if (arg.equals("--dense-svd")) {
+                factorizationMode = FactorizationMode.DENSE_SVD;
+            } else if (arg.equals("--sparse-svd")) {
+                factorizationMode = FactorizationMode.SPARSE_SVD;
+            } else if (arg.equals("--sgd")) {
+                factorizationMode = FactorizationMode.SGD;
+            } else if (arg.equals("--als")) {
+                factorizationMode = FactorizationMode.ALS;
             } else if (arg.equals("--all")) {
                 toScore = null;
             } else if (arg.startsWith("--")) {
@@ -73,10 +85,11 @@ public class SVDMain {
                 }
             }
         }
-        return new SVDMain(baselineMode, toScore);
+        return new SVDMain(baselineMode, factorizationMode, toScore);
     }
 
     BaselineMode baselineMode;
+    FactorizationMode factorizationMode;
     Map<Long,Set<Long>> toScore;
 
     /**
@@ -85,7 +98,18 @@ public class SVDMain {
      * @param requests The items to score for each user.
      */
     public SVDMain(BaselineMode base, Map<Long,Set<Long>> requests) {
+        this(base, FactorizationMode.DENSE_SVD, requests);
+    }
+
+    /**
+     * Construct a new SVD program.
+     * @param base The baseline mode.
+     * @param factorization The factorization mode.
+     * @param requests The items to score for each user.
+     */
+    public SVDMain(BaselineMode base, FactorizationMode factorization, Map<Long,Set<Long>> requests) {
         baselineMode = base;
+        factorizationMode = factorization;
         toScore = requests;
     }
 
@@ -102,6 +126,11 @@ public class SVDMain {
               .to(MOOCRatingDAO.class);
         config.set(RatingFile.class)
               .to(new File("data/ratings.csv"));
+        // index the ratings by user and by item
+        config.bind(UserEventDAO.class)
+              .to(RatingIndexDAO.class);
+        config.bind(ItemEventDAO.class)
+              .to(RatingIndexDAO.class);
 
         // use custom item and user DAOs
         // our item DAO has title information
@@ -122,7 +151,11 @@ public class SVDMain {
         // use the item-item scorer you will implement to score items
         config.bind(ItemScorer.class)
               .to(SVDItemScorer.class);
+        // recommend through the item factor index
+        config.bind(ItemRecommender.class)
+              .to(SVDItemRecommender.class);
         baselineMode.configure(config);
+        factorizationMode.configure(config);
         config.set(LatentFeatureCount.class)
               .to(10);
         return config;
@@ -1,26 +1,44 @@
 package edu.umn.cs.recsys.svd;
 
 import com.google.common.base.Preconditions;
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.grouplens.lenskit.core.Shareable;
 import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
- * SVD model for collaborative filtering.
+ * SVD model for collaborative filtering.  The factors are kept in flat row-major arrays, with
+ * the singular values folded into the user factors, so a prediction is a single dot product.
+ * <p>
+ * The model also records a {@linkplain #ratingHash(SparseVector) fingerprint} of each user's
+ * training ratings, so scorers can tell when a user's ratings have changed since training and
+ * {@linkplain #foldIn(SparseVector) fold them in} again.
  */
 @Shareable
 @DefaultProvider(SVDModelBuilder.class)
 public class SVDModel implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 4L;
     private final IdIndexMapping userMapping;
     private final IdIndexMapping itemMapping;
-    private final RealMatrix userFeatureMatrix;
-    private final RealMatrix itemFeatureMatrix;
-    private final RealMatrix featureWeights;
+    private final int featureCount;
+    private final double[] userFactors;
+    private final double[] itemFactors;
+    private final double[] featureWeights;
+    private final long[] userRatingHashes;
+    /**
+     * The regularization term the factors were trained with, for solving fold-ins; negative if
+     * the item factors are orthonormal, so users are folded in by projection.
+     */
+    private final double foldInRegularization;
 
     /**
      * Construct an SVD model.  The matrices represent the decomposition, such that the predictions
@@ -31,19 +49,139 @@ public class SVDModel implements Serializable {
      * @param umat The user feature matrix (users x features)
      * @param imat The item feature matrix (items x features)
      * @param weights The singular value matrix (diagonal matrix, features x features)
+     * @param hashes The {@linkplain #ratingHash(SparseVector) hashes} of the users' training
+     *               ratings, one per user row.
      */
-    SVDModel(IdIndexMapping umap, IdIndexMapping imap, RealMatrix umat, RealMatrix imat, RealMatrix weights) {
+    SVDModel(IdIndexMapping umap, IdIndexMapping imap, RealMatrix umat, RealMatrix imat, RealMatrix weights,
+             long[] hashes) {
         Preconditions.checkArgument(weights.isSquare(),
                                     "singular value matrix is not square");
         Preconditions.checkArgument(umat.getColumnDimension() == weights.getRowDimension(),
                                     "user matrix has incorrect column dimension");
         Preconditions.checkArgument(imat.getColumnDimension() == weights.getColumnDimension(),
                                     "item matrix has incorrect column dimension");
+        Preconditions.checkArgument(hashes.length == umap.size(),
+                                    "rating hash vector has incorrect size");
+        userMapping = umap;
+        itemMapping = imap;
+        featureCount = weights.getRowDimension();
+        featureWeights = new double[featureCount];
+        for (int f = 0; f < featureCount; f++) {
+            featureWeights[f] = weights.getEntry(f, f);
+        }
+        int nusers = umat.getRowDimension();
+        userFactors = new double[nusers * featureCount];
+        for (int u = 0; u < nusers; u++) {
+            for (int f = 0; f < featureCount; f++) {
+                userFactors[u * featureCount + f] = umat.getEntry(u, f) * featureWeights[f];
+            }
+        }
+        int nitems = imat.getRowDimension();
+        itemFactors = new double[nitems * featureCount];
+        for (int i = 0; i < nitems; i++) {
+            for (int f = 0; f < featureCount; f++) {
+                itemFactors[i * featureCount + f] = imat.getEntry(i, f);
+            }
+        }
+        userRatingHashes = hashes;
+        foldInRegularization = -1;
+    }
+
+    /**
+     * Construct an SVD model from flat factor arrays.  The predictions are equal to the products
+     * {@code umat * diag(weights) * imat.transpose()}.  The arrays are taken over by the model;
+     * the weights are folded into {@code umat} in place.  The item factors must have orthonormal
+     * columns, as those of a singular value decomposition do.
+     *
+     * @param umap The mapping between user IDs and row numbers.
+     * @param imap The mapping between item IDs and row numbers.
+     * @param umat The row-major user feature matrix (users x features).
+     * @param imat The row-major item feature matrix (items x features).
+     * @param weights The feature weights (singular values).
+     * @param hashes The hashes of the users' training ratings, one per user row.
+     */
+    SVDModel(IdIndexMapping umap, IdIndexMapping imap, double[] umat, double[] imat, double[] weights,
+             long[] hashes) {
+        this(umap, imap, umat, imat, weights, hashes, -1);
+    }
+
+    private SVDModel(IdIndexMapping umap, IdIndexMapping imap, double[] umat, double[] imat,
+                     double[] weights, long[] hashes, double regularization) {
+        int k = weights.length;
+        Preconditions.checkArgument(umat.length == umap.size() * k,
+                                    "user matrix has incorrect size");
+        Preconditions.checkArgument(imat.length == imap.size() * k,
+                                    "item matrix has incorrect size");
+        Preconditions.checkArgument(hashes.length == umap.size(),
+                                    "rating hash vector has incorrect size");
         userMapping = umap;
         itemMapping = imap;
-        userFeatureMatrix = umat;
-        itemFeatureMatrix = imat;
+        featureCount = k;
         featureWeights = weights;
+        for (int pos = 0; pos < umat.length; pos++) {
+            umat[pos] *= weights[pos % k];
+        }
+        userFactors = umat;
+        itemFactors = imat;
+        userRatingHashes = hashes;
+        foldInRegularization = regularization;
+    }
+
+    /**
+     * Construct a model from factors trained by gradient descent or alternating least squares.
+     * Such item factors are not orthonormal, so users are folded in by solving the same
+     * regularized least-squares problem the factors were trained on rather than by projection.
+     * The model has unit feature weights.
+     *
+     * @param umap The mapping between user IDs and row numbers.
+     * @param imap The mapping between item IDs and row numbers.
+     * @param umat The row-major user feature matrix (users x features).
+     * @param imat The row-major item feature matrix (items x features).
+     * @param k The number of features.
+     * @param hashes The hashes of the users' training ratings, one per user row.
+     * @param regularization The regularization term the factors were trained with, applied
+     *                       once per rating.
+     * @return The model.
+     */
+    static SVDModel trained(IdIndexMapping umap, IdIndexMapping imap, double[] umat, double[] imat,
+                            int k, long[] hashes, double regularization) {
+        Preconditions.checkArgument(regularization >= 0, "negative regularization");
+        double[] weights = new double[k];
+        Arrays.fill(weights, 1.0);
+        return new SVDModel(umap, imap, umat, imat, weights, hashes, regularization);
+    }
+
+    /**
+     * Compute the fingerprint of a user's ratings recorded in the model.  It changes whenever an
+     * item is rated, re-rated with a different value, or unrated.
+     * @param ratings The user's rating vector.
+     * @return The hash of the vector's (item, rating) pairs.
+     */
+    static long ratingHash(SparseVector ratings) {
+        long hash = ratings.size();
+        for (VectorEntry e: ratings.fast()) {
+            hash = hash * 0x9E3779B97F4A7C15L + e.getKey();
+            hash = hash * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(e.getValue());
+        }
+        return hash;
+    }
+
+    /**
+     * Get the fingerprint of a user's training ratings.
+     * @param row The user's row number.
+     * @return The {@linkplain #ratingHash(SparseVector) hash} of the ratings the user's factors
+     *         were trained on.
+     */
+    public long getUserRatingHash(int row) {
+        return userRatingHashes[row];
+    }
+
+    /**
+     * Get the number of latent features.
+     * @return The number of features.
+     */
+    public int getFeatureCount() {
+        return featureCount;
     }
 
     /**
@@ -51,12 +189,12 @@ public class SVDModel implements Serializable {
      * @return The diagonal matrix of feature weights.
      */
     public RealMatrix getFeatureWeights() {
-        return featureWeights;
+        return MatrixUtils.createRealDiagonalMatrix(featureWeights);
     }
 
     /**
      * Get a user feature vector. This is a row vector whose values (columns) are the feature
-     * values for a particular user.
+     * values for a particular user.  Features with zero weight read as zero.
      *
      * @param user The user ID.
      * @return The feature vector for user {@code user}, or {@code null} if the user is unkonwn.
@@ -65,7 +203,13 @@ public class SVDModel implements Serializable {
     public RealMatrix getUserVector(long user) {
         int row = userMapping.tryGetIndex(user);
         if (row >= 0) {
-            return userFeatureMatrix.getRowMatrix(row);
+            RealMatrix vector = MatrixUtils.createRealMatrix(1, featureCount);
+            for (int f = 0; f < featureCount; f++) {
+                if (featureWeights[f] != 0) {
+                    vector.setEntry(0, f, userFactors[row * featureCount + f] / featureWeights[f]);
+                }
+            }
+            return vector;
         } else {
             return null;
         }
@@ -82,7 +226,11 @@ public class SVDModel implements Serializable {
     public RealMatrix getItemVector(long item) {
         int row = itemMapping.tryGetIndex(item);
         if (row >= 0) {
-            return itemFeatureMatrix.getRowMatrix(row);
+            RealMatrix vector = MatrixUtils.createRealMatrix(1, featureCount);
+            for (int f = 0; f < featureCount; f++) {
+                vector.setEntry(0, f, itemFactors[row * featureCount + f]);
+            }
+            return vector;
         } else {
             return null;
         }
@@ -90,11 +238,128 @@ public class SVDModel implements Serializable {
 
     /**
      * Get a item feature vector matrix.  Its rows are items and its columns are latent features.
+     * The matrix is a read-only view of the {@linkplain #getItemFactors() item factors}, so
+     * getting it does not copy them; scoring reads the factor arrays directly.
      *
-     * @return The item-feature matrix (this must not be modified).
+     * @return The item-feature matrix (setting its entries throws an exception).
      */
     public RealMatrix getItemFeatureMatrix() {
-        return itemFeatureMatrix;
+        return new ItemFeatureMatrix();
+    }
+
+    /**
+     * Read-only matrix view of the item factors.
+     */
+    private class ItemFeatureMatrix extends AbstractRealMatrix {
+        @Override
+        public int getRowDimension() {
+            return itemFactors.length / Math.max(featureCount, 1);
+        }
+
+        @Override
+        public int getColumnDimension() {
+            return featureCount;
+        }
+
+        @Override
+        public double getEntry(int row, int column) {
+            MatrixUtils.checkMatrixIndex(this, row, column);
+            return itemFactors[row * featureCount + column];
+        }
+
+        @Override
+        public void setEntry(int row, int column, double value) {
+            throw new MathUnsupportedOperationException();
+        }
+
+        @Override
+        public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+            return MatrixUtils.createRealMatrix(rowDimension, columnDimension);
+        }
+
+        @Override
+        public RealMatrix copy() {
+            RealMatrix matrix = createMatrix(getRowDimension(), featureCount);
+            for (int i = 0; i < getRowDimension(); i++) {
+                for (int f = 0; f < featureCount; f++) {
+                    matrix.setEntry(i, f, itemFactors[i * featureCount + f]);
+                }
+            }
+            return matrix;
+        }
+    }
+
+    /**
+     * Get the user factors, with the feature weights folded in.  The array is row-major: the
+     * weighted value of feature <i>f</i> for the user in row <i>u</i> is at
+     * {@code u * getFeatureCount() + f}, so a prediction is the dot product of a user row and an
+     * {@linkplain #getItemFactors() item row}.
+     *
+     * @return The user factor array (this must not be modified).
+     */
+    public double[] getUserFactors() {
+        return userFactors;
+    }
+
+    /**
+     * Get the item factors.  The array is row-major: the value of feature <i>f</i> for the item
+     * in row <i>i</i> is at {@code i * getFeatureCount() + f}.
+     *
+     * @return The item factor array (this must not be modified).
+     */
+    public double[] getItemFactors() {
+        return itemFactors;
+    }
+
+    /**
+     * Fold a user into the model without retraining.  For a singular value decomposition the
+     * user's baseline residuals are projected onto the item factors, {@code u = r * V *
+     * inverse(S)}; the returned vector has the feature weights folded in like the
+     * {@linkplain #getUserFactors() user factors}, so it is simply {@code r * V}.  Projection
+     * only works because {@code V} is orthonormal.  For trained factors the vector instead solves
+     * the problem each user's factors were trained on, {@code (V_R^T V_R + lambda |R| I) u =
+     * V_R^T r}, where {@code V_R} holds the factors of the user's rated items {@code R} only, so
+     * unrated items do not count as zero residuals and a trained user's ratings give back their
+     * trained row.  Residuals for items not in the model are ignored.
+     *
+     * @param residuals The user's ratings minus their baseline scores.
+     * @return The user's weighted feature vector.
+     */
+    public double[] foldIn(SparseVector residuals) {
+        if (foldInRegularization >= 0) {
+            return solveFoldIn(residuals);
+        }
+        double[] vector = new double[featureCount];
+        for (VectorEntry e: residuals.fast()) {
+            int row = itemMapping.tryGetIndex(e.getKey());
+            if (row >= 0) {
+                double r = e.getValue();
+                int start = row * featureCount;
+                for (int f = 0; f < featureCount; f++) {
+                    vector[f] += r * itemFactors[start + f];
+                }
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Fold a user in against trained factors by solving their regularized least-squares
+     * problem over their rated items.
+     */
+    private double[] solveFoldIn(SparseVector residuals) {
+        NormalEquations ws = new NormalEquations(featureCount);
+        ws.clear();
+        for (VectorEntry e: residuals.fast()) {
+            int row = itemMapping.tryGetIndex(e.getKey());
+            if (row >= 0) {
+                ws.add(itemFactors, row * featureCount, e.getValue());
+            }
+        }
+        if (ws.getCount() == 0) {
+            return new double[featureCount];
+        }
+        return ws.solve(foldInRegularization);
     }
 
     /**
@@ -113,6 +378,24 @@ public class SVDModel implements Serializable {
         return itemMapping;
     }
 
+    /**
+     * Get the row number for a user in the user factors.
+     * @param user The user ID.
+     * @return The row number for the user, or a negative value if the user is unknown.
+     */
+    public int tryGetUserRow(long user) {
+        return userMapping.tryGetIndex(user);
+    }
+
+    /**
+     * Get the row number for an item in the item factors.
+     * @param item The item ID.
+     * @return The row number for the item, or a negative value if the item is unknown.
+     */
+    public int tryGetItemRow(long item) {
+        return itemMapping.tryGetIndex(item);
+    }
+
     /**
      * Get the row number for an item in the item-feature matrix.
      * @param item The item ID.
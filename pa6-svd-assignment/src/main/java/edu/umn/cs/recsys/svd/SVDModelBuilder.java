@@ -74,7 +74,8 @@ public class SVDModelBuilder implements Provider<SVDModel> {
 
         // We have to do 2 things:
         // First, prepare a matrix containing the rating data.
-        RealMatrix matrix = createRatingMatrix(userMapping, itemMapping);
+        long[] hashes = new long[userMapping.size()];
+        RealMatrix matrix = createRatingMatrix(userMapping, itemMapping, hashes);
 
         // Second, compute its factorization
         // All the work is done in the constructor
@@ -90,7 +91,7 @@ public class SVDModelBuilder implements Provider<SVDModel> {
         weights = weights.getSubMatrix(0, featureCount - 1, 0, featureCount - 1);
         itemMatrix = itemMatrix.getSubMatrix(0, itemMatrix.getRowDimension() - 1, 0, featureCount - 1);
 
-        return new SVDModel(userMapping, itemMapping, userMatrix, itemMatrix, weights);
+        return new SVDModel(userMapping, itemMapping, userMatrix, itemMatrix, weights, hashes);
     }
 
     /**
@@ -99,9 +100,11 @@ public class SVDModelBuilder implements Provider<SVDModel> {
      *
      * @param userMapping The index mapping of user IDs to column numbers.
      * @param itemMapping The index mapping of item IDs to row numbers.
+     * @param hashes An array to receive the hash of each user's ratings.
      * @return A matrix storing the <i>normalized</i> user ratings.
      */
-    private RealMatrix createRatingMatrix(IdIndexMapping userMapping, IdIndexMapping itemMapping) {
+    private RealMatrix createRatingMatrix(IdIndexMapping userMapping, IdIndexMapping itemMapping,
+                                          long[] hashes) {
         final int nusers = userMapping.size();
         final int nitems = itemMapping.size();
 
@@ -116,6 +119,7 @@ public class SVDModelBuilder implements Provider<SVDModel> {
                 // Get the row number for this user
                 int u = userMapping.getIndex(user.getUserId());
                 MutableSparseVector ratings = Ratings.userRatingVector(user.filter(Rating.class));
+                hashes[u] = SVDModel.ratingHash(ratings);
                 MutableSparseVector baselines = MutableSparseVector.create(ratings.keySet());
                 baselineScorer.score(user.getUserId(), baselines);
                 // TODO Populate this user's row with their ratings, minus the baseline scores
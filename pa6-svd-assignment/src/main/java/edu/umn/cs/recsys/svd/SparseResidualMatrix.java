@@ -0,0 +1,216 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+/**
+ * Sparse matrix of users' ratings minus their baseline scores, with users on rows and items on
+ * columns.  Each row stores only the user's rated columns and residuals, so the matrix takes
+ * memory proportional to the number of ratings.  Used by the iterative model builders.
+ */
+class SparseResidualMatrix {
+    private final int nrows;
+    private final int ncols;
+    private final int[][] columns;
+    private final double[][] values;
+    private final long[] rowHashes;
+
+    private SparseResidualMatrix(int rows, int cols, int[][] colIdx, double[][] vals, long[] hashes) {
+        nrows = rows;
+        ncols = cols;
+        columns = colIdx;
+        values = vals;
+        rowHashes = hashes;
+    }
+
+    /**
+     * Build the residual matrix from the rating data.
+     * @param dao The user event DAO.
+     * @param userMapping The index mapping of user IDs to row numbers.
+     * @param itemMapping The index mapping of item IDs to column numbers.
+     * @param baseline The baseline scorer whose scores are subtracted from the ratings.
+     * @return The residual matrix.
+     */
+    static SparseResidualMatrix build(UserEventDAO dao, IdIndexMapping userMapping,
+                                      IdIndexMapping itemMapping, ItemScorer baseline) {
+        int nusers = userMapping.size();
+        int[][] colIdx = new int[nusers][];
+        double[][] vals = new double[nusers][];
+        long[] hashes = new long[nusers];
+        Cursor<UserHistory<Event>> users = dao.streamEventsByUser();
+        try {
+            for (UserHistory<Event> user: users) {
+                int u = userMapping.tryGetIndex(user.getUserId());
+                if (u < 0) {
+                    continue;
+                }
+                MutableSparseVector ratings = Ratings.userRatingVector(user.filter(Rating.class));
+                hashes[u] = SVDModel.ratingHash(ratings);
+                MutableSparseVector baselines = MutableSparseVector.create(ratings.keySet());
+                baseline.score(user.getUserId(), baselines);
+                int[] cols = new int[ratings.size()];
+                double[] residuals = new double[ratings.size()];
+                int n = 0;
+                for (VectorEntry e: ratings.fast(VectorEntry.State.SET)) {
+                    int i = itemMapping.tryGetIndex(e.getKey());
+                    if (i >= 0) {
+                        cols[n] = i;
+                        residuals[n] = e.getValue() - baselines.get(e.getKey());
+                        n++;
+                    }
+                }
+                if (n < cols.length) {
+                    int[] c2 = new int[n];
+                    double[] r2 = new double[n];
+                    System.arraycopy(cols, 0, c2, 0, n);
+                    System.arraycopy(residuals, 0, r2, 0, n);
+                    cols = c2;
+                    residuals = r2;
+                }
+                colIdx[u] = cols;
+                vals[u] = residuals;
+            }
+        } finally {
+            users.close();
+        }
+        for (int u = 0; u < nusers; u++) {
+            if (colIdx[u] == null) {
+                colIdx[u] = new int[0];
+                vals[u] = new double[0];
+                hashes[u] = SVDModel.ratingHash(SparseVector.empty());
+            }
+        }
+        return new SparseResidualMatrix(nusers, itemMapping.size(), colIdx, vals, hashes);
+    }
+
+    /**
+     * Transpose the matrix, so its rows are items and its columns are users.
+     * @return The transposed matrix.
+     */
+    SparseResidualMatrix transpose() {
+        int[] counts = new int[ncols];
+        for (int r = 0; r < nrows; r++) {
+            for (int c: columns[r]) {
+                counts[c]++;
+            }
+        }
+        int[][] colIdx = new int[ncols][];
+        double[][] vals = new double[ncols][];
+        for (int c = 0; c < ncols; c++) {
+            colIdx[c] = new int[counts[c]];
+            vals[c] = new double[counts[c]];
+        }
+        int[] fill = new int[ncols];
+        for (int r = 0; r < nrows; r++) {
+            int[] cols = columns[r];
+            for (int e = 0; e < cols.length; e++) {
+                int c = cols[e];
+                colIdx[c][fill[c]] = r;
+                vals[c][fill[c]] = values[r][e];
+                fill[c]++;
+            }
+        }
+        return new SparseResidualMatrix(ncols, nrows, colIdx, vals, null);
+    }
+
+    /**
+     * Get the {@linkplain SVDModel#ratingHash(SparseVector) hashes} of the users' ratings.
+     * @return The hash of each row's ratings, or {@code null} for a transposed matrix.
+     */
+    long[] getRowHashes() {
+        return rowHashes;
+    }
+
+    int getRowCount() {
+        return nrows;
+    }
+
+    int getColumnCount() {
+        return ncols;
+    }
+
+    /**
+     * Get the column indexes of a row's entries.
+     * @param row The row number.
+     * @return The columns of the stored entries (must not be modified).
+     */
+    int[] rowColumns(int row) {
+        return columns[row];
+    }
+
+    /**
+     * Get the values of a row's entries.
+     * @param row The row number.
+     * @return The stored values, parallel to {@link #rowColumns(int)} (must not be modified).
+     */
+    double[] rowValues(int row) {
+        return values[row];
+    }
+
+    /**
+     * Get the number of stored entries.
+     * @return The number of ratings in the matrix.
+     */
+    long getEntryCount() {
+        long n = 0;
+        for (int[] cols: columns) {
+            n += cols.length;
+        }
+        return n;
+    }
+
+    /**
+     * Multiply this matrix by a dense matrix.
+     * @param b A row-major matrix with {@link #getColumnCount()} rows and {@code l} columns.
+     * @param l The number of columns of {@code b}.
+     * @return The row-major product, with {@link #getRowCount()} rows and {@code l} columns.
+     */
+    double[] multiply(double[] b, int l) {
+        double[] out = new double[nrows * l];
+        for (int r = 0; r < nrows; r++) {
+            int[] cols = columns[r];
+            double[] vals = values[r];
+            int ostart = r * l;
+            for (int e = 0; e < cols.length; e++) {
+                double v = vals[e];
+                int bstart = cols[e] * l;
+                for (int j = 0; j < l; j++) {
+                    out[ostart + j] += v * b[bstart + j];
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Multiply the transpose of this matrix by a dense matrix.
+     * @param b A row-major matrix with {@link #getRowCount()} rows and {@code l} columns.
+     * @param l The number of columns of {@code b}.
+     * @return The row-major product, with {@link #getColumnCount()} rows and {@code l} columns.
+     */
+    double[] transposeMultiply(double[] b, int l) {
+        double[] out = new double[ncols * l];
+        for (int r = 0; r < nrows; r++) {
+            int[] cols = columns[r];
+            double[] vals = values[r];
+            int bstart = r * l;
+            for (int e = 0; e < cols.length; e++) {
+                double v = vals[e];
+                int ostart = cols[e] * l;
+                for (int j = 0; j < l; j++) {
+                    out[ostart + j] += v * b[bstart + j];
+                }
+            }
+        }
+        return out;
+    }
+}
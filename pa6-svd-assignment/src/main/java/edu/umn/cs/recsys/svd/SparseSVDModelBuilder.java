@@ -0,0 +1,170 @@
+package edu.umn.cs.recsys.svd;
+
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.baseline.BaselineScorer;
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.indexes.IdIndexMapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+
+/**
+ * Model builder that computes a truncated SVD of the sparse residual matrix with a randomized
+ * range finder.  The residuals are kept sparse; the builder multiplies them by a random
+ * Gaussian matrix a few columns wider than the number of features, refines the resulting
+ * basis with power iterations, and decomposes the small projected matrix exactly.  Memory and
+ * time grow with the number of ratings rather than with users &times; items, and the model
+ * approximates the top singular triplets {@link SVDModelBuilder} computes.
+ */
+public class SparseSVDModelBuilder implements Provider<SVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(SparseSVDModelBuilder.class);
+    /**
+     * Extra random columns sampled beyond the number of features.
+     */
+    static final int OVERSAMPLING = 10;
+    /**
+     * Number of power iterations refining the range basis.
+     */
+    static final int POWER_ITERATIONS = 2;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final UserEventDAO userEventDAO;
+    private final UserDAO userDAO;
+    private final ItemDAO itemDAO;
+    private final ItemScorer baselineScorer;
+    private final int featureCount;
+
+    /**
+     * Construct the model builder.
+     * @param uedao The user event DAO.
+     * @param udao The user DAO.
+     * @param idao The item DAO.
+     * @param baseline The baseline scorer (this will be used to compute means).
+     * @param nfeatures The number of latent features to train.
+     */
+    @Inject
+    public SparseSVDModelBuilder(@Transient UserEventDAO uedao,
+                                 @Transient UserDAO udao,
+                                 @Transient ItemDAO idao,
+                                 @Transient @BaselineScorer ItemScorer baseline,
+                                 @LatentFeatureCount int nfeatures) {
+        userEventDAO = uedao;
+        userDAO = udao;
+        itemDAO = idao;
+        baselineScorer = baseline;
+        featureCount = nfeatures;
+    }
+
+    /**
+     * Build the SVD model.
+     *
+     * @return A truncated singular value decomposition recommender model.
+     */
+    @Override
+    public SVDModel get() {
+        IdIndexMapping userMapping = IdIndexMapping.create(userDAO.getUserIds());
+        IdIndexMapping itemMapping = IdIndexMapping.create(itemDAO.getItemIds());
+        SparseResidualMatrix matrix =
+                SparseResidualMatrix.build(userEventDAO, userMapping, itemMapping, baselineScorer);
+        int nusers = matrix.getRowCount();
+        int nitems = matrix.getColumnCount();
+        int rank = Math.min(nusers, nitems);
+        int k = Math.min(featureCount, rank);
+        int l = Math.min(k + OVERSAMPLING, rank);
+        logger.info("computing {} features of {} by {} residual matrix with {} ratings",
+                    new Object[]{k, nusers, nitems, matrix.getEntryCount()});
+
+        // sample the range of the matrix
+        Random rng = new Random(SEED);
+        double[] omega = new double[nitems * l];
+        for (int i = 0; i < omega.length; i++) {
+            omega[i] = rng.nextGaussian();
+        }
+        double[] q = matrix.multiply(omega, l);
+        orthonormalize(q, nusers, l);
+        for (int iter = 0; iter < POWER_ITERATIONS; iter++) {
+            double[] z = matrix.transposeMultiply(q, l);
+            orthonormalize(z, nitems, l);
+            q = matrix.multiply(z, l);
+            orthonormalize(q, nusers, l);
+        }
+
+        // project the matrix onto the basis and decompose the small projection:
+        // (Q^T A)^T = Ub S Vb^T, so A ~ (Q Vb) S Ub^T
+        double[] bt = matrix.transposeMultiply(q, l);
+        RealMatrix btMatrix = MatrixUtils.createRealMatrix(nitems, l);
+        for (int i = 0; i < nitems; i++) {
+            for (int j = 0; j < l; j++) {
+                btMatrix.setEntry(i, j, bt[i * l + j]);
+            }
+        }
+        SingularValueDecomposition svd = new SingularValueDecomposition(btMatrix);
+        RealMatrix ub = svd.getU();
+        RealMatrix vb = svd.getV();
+        double[] singularValues = svd.getSingularValues();
+
+        double[] weights = new double[k];
+        System.arraycopy(singularValues, 0, weights, 0, k);
+        double[] itemMatrix = new double[nitems * k];
+        for (int i = 0; i < nitems; i++) {
+            for (int f = 0; f < k; f++) {
+                itemMatrix[i * k + f] = ub.getEntry(i, f);
+            }
+        }
+        double[] userMatrix = new double[nusers * k];
+        for (int u = 0; u < nusers; u++) {
+            for (int f = 0; f < k; f++) {
+                double sum = 0;
+                for (int t = 0; t < l; t++) {
+                    sum += q[u * l + t] * vb.getEntry(t, f);
+                }
+                userMatrix[u * k + f] = sum;
+            }
+        }
+
+        return new SVDModel(userMapping, itemMapping, userMatrix, itemMatrix, weights,
+                            matrix.getRowHashes());
+    }
+
+    /**
+     * Orthonormalize the columns of a row-major matrix in place with modified Gram-Schmidt.
+     * The pass is run twice to restore orthogonality lost to rounding.  Columns that are
+     * (numerically) dependent on earlier ones are set to zero.
+     * @param a The matrix.
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     */
+    static void orthonormalize(double[] a, int rows, int cols) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < cols; j++) {
+                for (int i = 0; i < j; i++) {
+                    double dot = 0;
+                    for (int r = 0; r < rows; r++) {
+                        dot += a[r * cols + i] * a[r * cols + j];
+                    }
+                    for (int r = 0; r < rows; r++) {
+                        a[r * cols + j] -= dot * a[r * cols + i];
+                    }
+                }
+                double norm = 0;
+                for (int r = 0; r < rows; r++) {
+                    norm += a[r * cols + j] * a[r * cols + j];
+                }
+                norm = Math.sqrt(norm);
+                double scale = norm > 1.0e-12 ? 1.0 / norm : 0.0;
+                for (int r = 0; r < rows; r++) {
+                    a[r * cols + j] *= scale;
+                }
+            }
+        }
+    }
+}
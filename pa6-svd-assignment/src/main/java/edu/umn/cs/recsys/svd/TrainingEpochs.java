@@ -0,0 +1,20 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the number of passes over the ratings made when training factors by
+ * stochastic gradient descent.
+ */
+@Documented
+@Qualifier
+@Parameter(Integer.class)
+@DefaultInteger(20)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface TrainingEpochs {
+}
@@ -0,0 +1,132 @@
+package edu.umn.cs.recsys;
+
+import org.grouplens.lenskit.scored.ScoredId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TopNSelectorTest {
+    /**
+     * Select the top <i>n</i> pairs by sorting them all.
+     */
+    private static List<long[]> bruteForce(long[] ids, double[] scores, int n) {
+        List<long[]> pairs = new ArrayList<long[]>();
+        for (int i = 0; i < ids.length; i++) {
+            pairs.add(new long[]{ids[i], i});
+        }
+        final double[] s = scores;
+        Collections.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] p1, long[] p2) {
+                int cmp = Double.compare(s[(int) p2[1]], s[(int) p1[1]]);
+                return cmp != 0 ? cmp : (p1[0] < p2[0] ? -1 : (p1[0] > p2[0] ? 1 : 0));
+            }
+        });
+        return pairs.subList(0, Math.min(n, pairs.size()));
+    }
+
+    private static void assertSelected(List<ScoredId> actual, long[] ids, double[] scores, int n) {
+        List<long[]> expected = bruteForce(ids, scores, n);
+        assertThat(actual, hasSize(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getId(), equalTo(expected.get(i)[0]));
+            assertThat(actual.get(i).getScore(), equalTo(scores[(int) expected.get(i)[1]]));
+        }
+    }
+
+    @Test
+    public void testSelectsHighestInOrder() {
+        Random rng = new Random(42);
+        long[] ids = new long[200];
+        double[] scores = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rng.nextInt(100000);
+            // few distinct scores, so there are many ties
+            scores[i] = rng.nextInt(10);
+        }
+        for (int n: new int[]{1, 5, 17, 200, 500}) {
+            TopNSelector selector = new TopNSelector(n);
+            for (int i = 0; i < ids.length; i++) {
+                selector.put(ids[i], scores[i]);
+            }
+            assertThat(selector.size(), equalTo(Math.min(n, ids.length)));
+            assertThat(selector.isFull(), equalTo(n <= ids.length));
+            assertSelected(selector.finishList(), ids, scores, n);
+            assertThat(selector.size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testTiesPreferLowerIds() {
+        TopNSelector selector = new TopNSelector(2);
+        selector.put(7, 1.0);
+        selector.put(3, 1.0);
+        selector.put(5, 1.0);
+        selector.put(9, 0.5);
+        assertThat(selector.minScore(), equalTo(1.0));
+        List<ScoredId> list = selector.finishList();
+        assertThat(list, hasSize(2));
+        assertThat(list.get(0).getId(), equalTo(3L));
+        assertThat(list.get(1).getId(), equalTo(5L));
+
+        // the same pairs in the other order
+        selector.put(9, 0.5);
+        selector.put(5, 1.0);
+        selector.put(3, 1.0);
+        selector.put(7, 1.0);
+        assertThat(selector.finishVector().keySet(), contains(3L, 5L));
+    }
+
+    @Test
+    public void testZeroSelectsNothing() {
+        TopNSelector selector = new TopNSelector(0);
+        assertThat(selector.isFull(), equalTo(true));
+        selector.put(1, 5.0);
+        selector.put(2, 3.0);
+        assertThat(selector.size(), equalTo(0));
+        assertThat(selector.minScore(), equalTo(Double.NEGATIVE_INFINITY));
+        assertThat(selector.finishList(), hasSize(0));
+        assertThat(selector.finishVector().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testPutAllMatchesSingleSelector() {
+        Random rng = new Random(7);
+        long[] ids = new long[100];
+        double[] scores = new double[ids.length];
+        TopNSelector[] parts = {new TopNSelector(10), new TopNSelector(10), new TopNSelector(10)};
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            scores[i] = rng.nextInt(20);
+            parts[i % parts.length].put(ids[i], scores[i]);
+        }
+        TopNSelector merged = new TopNSelector(10);
+        for (TopNSelector part: parts) {
+            merged.putAll(part);
+        }
+        assertThat(parts[0].size(), equalTo(10));
+        assertSelected(merged.finishList(), ids, scores, 10);
+    }
+
+    @Test
+    public void testFinishInto() {
+        TopNSelector selector = new TopNSelector(3);
+        selector.put(1, 0.25);
+        selector.put(2, 0.75);
+        long[] ids = new long[5];
+        float[] scores = new float[5];
+        assertThat(selector.finishInto(ids, scores, 2), equalTo(2));
+        assertThat(ids[2], equalTo(2L));
+        assertThat(ids[3], equalTo(1L));
+        assertThat(scores[2], equalTo(0.75f));
+        assertThat(scores[3], equalTo(0.25f));
+        assertThat(ids[4], equalTo(0L));
+    }
+}
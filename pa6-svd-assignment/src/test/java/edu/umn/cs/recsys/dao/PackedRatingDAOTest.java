@@ -0,0 +1,123 @@
+package edu.umn.cs.recsys.dao;
+
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.grouplens.lenskit.data.dao.SimpleFileRatingDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PackedRatingDAOTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeCSV() throws IOException {
+        File csv = folder.newFile("ratings.csv");
+        PrintWriter out = new PrintWriter(new FileWriter(csv));
+        try {
+            out.println("3,10,4.0,7");
+            out.println("1,12,2.5,3");
+            out.println("3,11,1.0,2");
+            out.println("2,10,5.0,9");
+            out.println("1,10,3.5,1");
+        } finally {
+            out.close();
+        }
+        return csv;
+    }
+
+    private static <E extends Event> List<E> drain(Cursor<E> cursor) {
+        List<E> list = new ArrayList<E>();
+        try {
+            for (E e: cursor) {
+                list.add(e);
+            }
+        } finally {
+            cursor.close();
+        }
+        return list;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File csv = writeCSV();
+        File packed = PackedRatingDAO.packedFileFor(csv);
+        assertThat(packed.getName(), equalTo("ratings.pack"));
+        assertThat(PackedRatingDAO.pack(csv, packed), equalTo(5));
+        assertThat(packed.length(), equalTo(PackedRatingDAO.fileSize(5)));
+
+        PackedRatingDAO dao = PackedRatingDAO.open(packed);
+        assertThat(dao.size(), equalTo(5));
+        List<Rating> expected = drain(new SimpleFileRatingDAO(csv, ",").streamEvents(Rating.class));
+        assertThat(drain(dao.streamEvents(Rating.class)), contains(expected.toArray()));
+
+        List<Rating> byUser = drain(dao.streamEvents(Rating.class, SortOrder.USER));
+        assertThat(byUser, hasSize(5));
+        for (int i = 1; i < byUser.size(); i++) {
+            Rating prev = byUser.get(i - 1);
+            Rating cur = byUser.get(i);
+            assertThat(prev.getUserId(), lessThanOrEqualTo(cur.getUserId()));
+            if (prev.getUserId() == cur.getUserId()) {
+                assertThat(prev.getTimestamp(), lessThanOrEqualTo(cur.getTimestamp()));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        File csv = folder.newFile("empty.csv");
+        File packed = folder.newFile("empty.pack");
+        assertThat(PackedRatingDAO.pack(csv, packed), equalTo(0));
+        assertThat(drain(PackedRatingDAO.open(packed).streamEvents()), hasSize(0));
+    }
+
+    /**
+     * Copy the first bytes of a file.
+     */
+    private File truncate(File file, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        File out = folder.newFile();
+        OutputStream stream = new FileOutputStream(out);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+        return out;
+    }
+
+    @Test(expected = DataAccessException.class)
+    public void testRejectsTruncatedColumns() throws IOException {
+        File packed = folder.newFile("ratings.pack");
+        PackedRatingDAO.pack(writeCSV(), packed);
+        PackedRatingDAO.open(truncate(packed, (int) packed.length() - 8));
+    }
+
+    @Test(expected = DataAccessException.class)
+    public void testRejectsTruncatedHeader() throws IOException {
+        File packed = folder.newFile("ratings.pack");
+        PackedRatingDAO.pack(writeCSV(), packed);
+        PackedRatingDAO.open(truncate(packed, 12));
+    }
+
+    @Test(expected = DataAccessException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        PackedRatingDAO.open(truncate(writeCSV(), 20));
+    }
+}
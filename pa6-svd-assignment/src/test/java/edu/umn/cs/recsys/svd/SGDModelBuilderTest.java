@@ -0,0 +1,37 @@
+package edu.umn.cs.recsys.svd;
+
+import org.grouplens.lenskit.baseline.ConstantItemScorer;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SGDModelBuilderTest {
+    @Test
+    public void testFeatureCountIsCapped() {
+        List<Event> events = new ArrayList<Event>();
+        for (long u = 1; u <= 3; u++) {
+            for (long i = 1; i <= 5; i++) {
+                events.add(Ratings.make(u, i, (u + i) % 5 + 1, 1));
+            }
+        }
+        EventCollectionDAO dao = new EventCollectionDAO(events);
+        SVDModel model = new SGDModelBuilder(new PrefetchingUserEventDAO(dao),
+                                             new PrefetchingUserDAO(dao),
+                                             new PrefetchingItemDAO(dao),
+                                             new ConstantItemScorer(3.0),
+                                             10, 5, 0.01, 0.02).get();
+        assertThat(model.getFeatureCount(), equalTo(3));
+        assertThat(model.getUserFactors().length, equalTo(3 * 3));
+        assertThat(model.getItemFactors().length, equalTo(5 * 3));
+    }
+}
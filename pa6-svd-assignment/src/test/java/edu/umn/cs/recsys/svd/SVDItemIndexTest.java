@@ -0,0 +1,114 @@
+package edu.umn.cs.recsys.svd;
+
+import edu.umn.cs.recsys.TopNSelector;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.basic.AbstractItemScorer;
+import org.grouplens.lenskit.baseline.ConstantItemScorer;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SVDItemIndexTest {
+    private static final int ITEMS = 50;
+    private static final int FEATURES = 4;
+
+    private static SVDItemIndex randomIndex(Random rng, int nprobe) {
+        long[] ids = new long[ITEMS];
+        double[] factors = new double[ITEMS * FEATURES];
+        double[] offsets = new double[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            ids[i] = 100 + i;
+            offsets[i] = rng.nextGaussian();
+            for (int f = 0; f < FEATURES; f++) {
+                factors[i * FEATURES + f] = rng.nextGaussian();
+            }
+        }
+        return new SVDItemIndex(ids, factors, FEATURES, offsets, 4, nprobe);
+    }
+
+    private static void assertSameItems(List<ScoredId> actual, List<ScoredId> expected) {
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getId(), equalTo(expected.get(i).getId()));
+            assertThat(actual.get(i).getScore(), closeTo(expected.get(i).getScore(), 1.0e-9));
+        }
+    }
+
+    @Test
+    public void testExactSearchMatchesScan() {
+        Random rng = new Random(17);
+        SVDItemIndex index = randomIndex(rng, 0);
+        LongSet exclude = new LongOpenHashSet(new long[]{100, 105, 110});
+        TopNSelector expected = new TopNSelector(5);
+        for (int q = 0; q < 20; q++) {
+            double[] user = new double[FEATURES];
+            for (int f = 0; f < FEATURES; f++) {
+                user[f] = rng.nextGaussian();
+            }
+            index.scanAll(user, null, expected);
+            assertSameItems(index.search(user, 5, null), expected.finishList());
+            index.scanAll(user, exclude, expected);
+            assertSameItems(index.search(user, 5, exclude), expected.finishList());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeProbeLimit() {
+        randomIndex(new Random(17), -1);
+    }
+
+    private static SVDModel trainModel() {
+        List<Event> events = new ArrayList<Event>();
+        Random rng = new Random(23);
+        for (long u = 1; u <= 8; u++) {
+            for (long i = 1; i <= 10; i++) {
+                if (rng.nextInt(2) == 0) {
+                    events.add(Ratings.make(u, i, 1 + rng.nextInt(5), 1));
+                }
+            }
+        }
+        EventCollectionDAO dao = new EventCollectionDAO(events);
+        return new ALSModelBuilder(new PrefetchingUserEventDAO(dao), new PrefetchingUserDAO(dao),
+                                   new PrefetchingItemDAO(dao), new ConstantItemScorer(3.0),
+                                   2, 5, 0.05, 1).get();
+    }
+
+    @Test
+    public void testBuilderAcceptsAdditiveBaseline() {
+        SVDModel model = trainModel();
+        SVDItemIndex index = new SVDItemIndexBuilder(model, new ConstantItemScorer(3.0),
+                                                     4, 0, 0).get();
+        assertThat(index.getItemCount(), equalTo(model.getItemIndMapping().size()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuilderRejectsInteractingBaseline() {
+        // a baseline where each user weighs the items differently
+        AbstractItemScorer baseline = new AbstractItemScorer() {
+            @Override
+            public void score(long user, @Nonnull MutableSparseVector scores) {
+                for (VectorEntry e: scores.fast(VectorEntry.State.EITHER)) {
+                    scores.set(e, 3.0 + 0.01 * (user % 7) * e.getKey());
+                }
+            }
+        };
+        new SVDItemIndexBuilder(trainModel(), baseline, 4, 0, 0).get();
+    }
+}
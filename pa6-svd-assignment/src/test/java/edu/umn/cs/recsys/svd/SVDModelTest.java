@@ -0,0 +1,118 @@
+package edu.umn.cs.recsys.svd;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.grouplens.lenskit.baseline.ConstantItemScorer;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingItemDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SVDModelTest {
+    private static final double BASELINE = 3.0;
+    private static final int USERS = 12;
+    private static final int ITEMS = 15;
+    private static final int FEATURES = 3;
+
+    private EventCollectionDAO dao;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        List<Event> events = new ArrayList<Event>();
+        for (long u = 1; u <= USERS; u++) {
+            for (long i = 1; i <= ITEMS; i++) {
+                // leave some items unrated by each user
+                if (rng.nextInt(3) > 0) {
+                    events.add(Ratings.make(u, 100 + i, 1 + rng.nextInt(9) * 0.5, u * ITEMS + i));
+                }
+            }
+        }
+        // an item nobody else rated, so it has (near) zero factors
+        events.add(Ratings.make(1, 999, 5.0, 1));
+        dao = new EventCollectionDAO(events);
+    }
+
+    private SVDModel train() {
+        return train(2);
+    }
+
+    private SVDModel train(int nthreads) {
+        return new ALSModelBuilder(new PrefetchingUserEventDAO(dao),
+                                   new PrefetchingUserDAO(dao),
+                                   new PrefetchingItemDAO(dao),
+                                   new ConstantItemScorer(BASELINE),
+                                   FEATURES, 10, 0.05, nthreads).get();
+    }
+
+    @Test
+    public void testALSIsIndependentOfThreads() {
+        SVDModel model = train(1);
+        for (int nthreads = 2; nthreads <= 4; nthreads++) {
+            SVDModel other = train(nthreads);
+            assertThat(other.getUserFactors(), equalTo(model.getUserFactors()));
+            assertThat(other.getItemFactors(), equalTo(model.getItemFactors()));
+        }
+    }
+
+    @Test
+    public void testFoldInReproducesTrainedRows() {
+        SVDModel model = train();
+        PrefetchingUserEventDAO users = new PrefetchingUserEventDAO(dao);
+        double[] factors = model.getUserFactors();
+        for (long u = 1; u <= USERS; u++) {
+            MutableSparseVector residuals = RatingVectorUserHistorySummarizer
+                    .makeRatingVector(users.getEventsForUser(u)).mutableCopy();
+            residuals.add(-BASELINE);
+            double[] folded = model.foldIn(residuals);
+            int row = model.getUserIndexMapping().getIndex(u);
+            for (int f = 0; f < FEATURES; f++) {
+                assertThat(folded[f], closeTo(factors[row * FEATURES + f], 1.0e-8));
+            }
+        }
+    }
+
+    @Test
+    public void testFoldInWithoutKnownItemsIsZero() {
+        SVDModel model = train();
+        MutableSparseVector residuals = MutableSparseVector.create(5000L);
+        residuals.set(5000L, 1.5);
+        for (double v: model.foldIn(residuals)) {
+            assertThat(v, closeTo(0, 1.0e-12));
+        }
+    }
+
+    @Test
+    public void testItemFeatureMatrixViewsFactors() {
+        SVDModel model = train();
+        RealMatrix matrix = model.getItemFeatureMatrix();
+        double[] factors = model.getItemFactors();
+        assertThat(matrix.getRowDimension(), equalTo(ITEMS + 1));
+        assertThat(matrix.getColumnDimension(), equalTo(FEATURES));
+        for (int i = 0; i <= ITEMS; i++) {
+            for (int f = 0; f < FEATURES; f++) {
+                assertThat(matrix.getEntry(i, f), equalTo(factors[i * FEATURES + f]));
+            }
+        }
+        assertThat(matrix.copy(), equalTo(matrix));
+    }
+
+    @Test(expected = MathUnsupportedOperationException.class)
+    public void testItemFeatureMatrixIsReadOnly() {
+        train().getItemFeatureMatrix().setEntry(0, 0, 1.0);
+    }
+}